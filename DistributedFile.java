@@ -1,19 +1,74 @@
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.Map;
+import java.util.Set;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BinaryOperator;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import java.util.zip.CRC32C;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 import segy.SegyImage;
 
-class DistributedFile {
+class DistributedFile implements AutoCloseable {
   
   public DistributedFile ( String segy_file
                          , String header
@@ -24,6 +79,7 @@ class DistributedFile {
                          , String prefix
                          , String suffix
                          , String dir
+                         , String... options
                          ) throws VolumeIOException
   {
       _header = header;
@@ -35,6 +91,7 @@ class DistributedFile {
                       , prefix
                       , suffix
                       , dir
+                      , options
                       );
       init_dim();
       init(_header);
@@ -47,24 +104,272 @@ class DistributedFile {
   
   private void populate_from_segy(String segy_file) throws VolumeIOException
   {
+      ingest_segy(segy_file, null);
+  }
+  
+  public class IngestStats
+  {
+    public final long traces;
+    public final long bytes; // trace samples written, 4 bytes each
+    public final long nanos;
+    
+    IngestStats(long traces,long bytes,long nanos)
+    {
+      this.traces = traces;
+      this.bytes = bytes;
+      this.nanos = nanos;
+    }
+    
+    public double traces_per_second()
+    {
+      return nanos>0 ? traces*1e9/nanos : 0;
+    }
+    
+    public double megabytes_per_second()
+    {
+      return nanos>0 ? bytes*1e9/nanos/(1<<20) : 0;
+    }
+    
+    @Override
+    public String toString()
+    {
+      return traces+" traces, "+String.format("%.1f traces/s, %.1f MB/s", traces_per_second(), megabytes_per_second());
+    }
+  }
+  
+  private static final int INGEST_SLABS = 2;
+  
+  // reads the traces in inline order into slabs of p1 inlines, the tiles of a full slab are written by the
+  // I/O threads while the next slab is read, so at most INGEST_SLABS slabs are held; progress, if not null,
+  // receives the running totals after every slab
+  public IngestStats ingest_segy(String segy_file,Consumer<IngestStats> progress) throws VolumeIOException
+  {
+      long start = System.nanoTime();
       SegyImage image = new SegyImage(segy_file);
-      int NX = ((int)((image.getN3()-1)/p1)+1)*p1;
-      int NY = ((int)((image.getN2()-1)/p2)+1)*p2;
-      int NZ = ((int)((image.getN1()-1)/p3)+1)*p3;
-      float[][][] data = new float[NX][NY][NZ];
-      for(int i3=image.getI3Min();i3<=image.getI3Max();i3++)
+      int m1 = Math.min(n1, image.getI3Max()-image.getI3Min()+1);
+      int m2 = Math.min(n2, image.getI2Max()-image.getI2Min()+1);
+      int m3 = Math.min(n3, image.getN1());
+      float[][] slabs = new float[INGEST_SLABS][];
+      List<CompletableFuture<Void>> writes = new ArrayList<CompletableFuture<Void>>();
+      long traces = 0;
+      try
+      {
+          for(int s1=0,slab=0;s1<m1;s1+=p1,slab++)
+          {
+              int b = slab%INGEST_SLABS;
+              if(slab>=INGEST_SLABS)
+              {
+                  writes.get(slab-INGEST_SLABS).join();
+              }
+              int rows = Math.min(p1, m1-s1);
+              if(slabs[b]==null)
+              {
+                  slabs[b] = new float[p1*m2*m3];
+              }
+              float[] data = slabs[b];
+              for(int x1=s1;x1<s1+rows;x1++)
+              {
+                  for(int x2=0;x2<m2;x2++)
+                  {
+                      float[] trace = image.getTrace(image.getI2Min()+x2, image.getI3Min()+x1);
+                      System.arraycopy(trace, 0, data, ((x1-s1)*m2+x2)*m3, m3);
+                  }
+              }
+              traces += (long)rows*m2;
+              final Region region = new FlatRegion(s1,0,0,rows,m2,m3,data,0,m2*m3,m3);
+              writes.add(submit_tiles(get_tiles(s1,0,0,rows,m2,m3), new TileTask()
+              {
+                  @Override
+                  public void run(Tile tile) throws IOException
+                  {
+                      write_tile_from(region, tile);
+                  }
+              }));
+              if(progress!=null)
+              {
+                  progress.accept(new IngestStats(traces, traces*m3*Float.BYTES, System.nanoTime()-start));
+              }
+          }
+          CompletableFuture.allOf(writes.toArray(new CompletableFuture<?>[0])).join();
+      }
+      catch(CompletionException e)
+      {
+          throw VolumeIOException.fromMessage(e.getCause().getMessage());
+      }
+      ingest_stats = new IngestStats(traces, traces*m3*Float.BYTES, System.nanoTime()-start);
+      return ingest_stats;
+  }
+  
+  public IngestStats get_ingest_stats()
+  {
+      return ingest_stats;
+  }
+  
+  public enum SegyFormat
+  {
+    IBM,  // format code 1, 4-byte IBM floating point
+    IEEE  // format code 5, 4-byte IEEE floating point
+  }
+  
+  private static final int EXPORT_SLABS_AHEAD = 2;
+  
+  // writes the volume as SEG-Y rev 1 with one trace per (x1,x2) in inline order; tile rows of p1 inlines are
+  // read by the I/O threads up to EXPORT_SLABS_AHEAD rows ahead of the writer, which bounds the memory held
+  public void export_segy(String segy_file,SegyFormat format) throws VolumeIOException
+  {
+      if(n3>65535)
+      {
+          throw VolumeIOException.fromMessage("export segy : n3 > 65535 samples per trace");
+      }
+      if(n2>65535)
       {
-          for(int i2=image.getI2Min();i2<=image.getI2Max();i2++)
+          throw VolumeIOException.fromMessage("export segy : n2 > 65535 traces per ensemble");
+      }
+      ArrayDeque<CompletableFuture<float[]>> slabs = new ArrayDeque<CompletableFuture<float[]>>();
+      int next = 0;
+      try
+      {
+          FileOutputStream file = new FileOutputStream(segy_file);
+          BufferedOutputStream out = new BufferedOutputStream(file, 1<<20);
+          try
           {
-              float[] trace = image.getTrace(i2, i3);
-              float[] out = data[i3-image.getI3Min()][i2-image.getI2Min()];
-              for(int i1=0;i1<image.getN1();i1++)
+              out.write(segy_text_header());
+              out.write(segy_binary_header(format));
+              ByteBuffer trace = ByteBuffer.allocate(240+Float.BYTES*n3);
+              long count = 0;
+              for(int s1=0;s1<n1;s1+=p1)
               {
-                  out[i1] = trace[i1];
+                  while(next<n1&&slabs.size()<=EXPORT_SLABS_AHEAD)
+                  {
+                      slabs.add(read_slab_async(next, Math.min(p1, n1-next)));
+                      next += p1;
+                  }
+                  float[] slab = slabs.poll().join();
+                  for(int x1=s1;x1<Math.min(s1+p1,n1);x1++)
+                  {
+                      for(int x2=0;x2<n2;x2++)
+                      {
+                          count++;
+                          segy_trace_header(trace, count, x1, x2);
+                          int base = ((x1-s1)*n2+x2)*n3;
+                          for(int x3=0;x3<n3;x3++)
+                          {
+                              float v = slab[base+x3];
+                              trace.putInt(240+Float.BYTES*x3, format==SegyFormat.IBM ? ieee_to_ibm(v) : Float.floatToRawIntBits(v));
+                          }
+                          out.write(trace.array());
+                      }
+                  }
               }
           }
+          finally
+          {
+              out.close();
+          }
       }
-      write_data_local_coordinates(0, 0, 0, data);
+      catch(IOException e)
+      {
+          throw VolumeIOException.fromMessage(e.getMessage());
+      }
+      catch(CompletionException e)
+      {
+          throw VolumeIOException.fromMessage(e.getCause().getMessage());
+      }
+  }
+  
+  private CompletableFuture<float[]> read_slab_async(int s1,int rows)
+  {
+      final float[] slab = new float[rows*n2*n3];
+      final Region region = new FlatRegion(s1,0,0,rows,n2,n3,slab,0,n2*n3,n3);
+      return submit_tiles(get_tiles(s1,0,0,rows,n2,n3), new TileTask()
+      {
+          @Override
+          public void run(Tile tile) throws IOException
+          {
+              read_tile_into(region, tile);
+          }
+      }).thenApply(v -> slab);
+  }
+  
+  // 40 card images of 80 columns in EBCDIC
+  private byte[] segy_text_header()
+  {
+      StringBuilder text = new StringBuilder();
+      String[] lines = { "DISTRIBUTED FILE EXPORT"
+                       , "HEADER "+_header
+                       , "INLINES "+n1+" FIRST "+o1+" STEP "+d1+" (BYTES 189-192)"
+                       , "CROSSLINES "+n2+" FIRST "+o2+" STEP "+d2+" (BYTES 193-196)"
+                       , "SAMPLES "+n3+" FIRST "+o3+" STEP "+d3
+                       };
+      for(int i=0;i<40;i++)
+      {
+          String line = String.format("C%2d ", i+1)+(i<lines.length ? lines[i] : i==38 ? "SEG Y REV1" : i==39 ? "END TEXTUAL HEADER" : "");
+          text.append(String.format("%-80.80s", line));
+      }
+      Charset ebcdic = Charset.isSupported("IBM037") ? Charset.forName("IBM037") : StandardCharsets.US_ASCII;
+      return text.toString().getBytes(ebcdic);
+  }
+  
+  private byte[] segy_binary_header(SegyFormat format)
+  {
+      ByteBuffer header = ByteBuffer.allocate(400);
+      header.putShort(3213-3201, (short)n2);                          // traces per ensemble
+      header.putShort(3217-3201, (short)Math.min(d3, 65535));          // sample interval
+      header.putShort(3221-3201, (short)n3);                          // samples per trace
+      header.putShort(3225-3201, (short)(format==SegyFormat.IBM ? 1 : 5));
+      header.putShort(3227-3201, (short)1);                           // ensemble fold
+      header.putShort(3229-3201, (short)4);                           // sorted by cdp ensemble
+      header.putShort(3501-3201, (short)0x0100);                      // revision 1.0
+      header.putShort(3503-3201, (short)1);                           // fixed length traces
+      return header.array();
+  }
+  
+  private void segy_trace_header(ByteBuffer trace,long count,int x1,int x2)
+  {
+      Arrays.fill(trace.array(), 0, 240, (byte)0);
+      int inline = o1+x1*d1;
+      int crossline = o2+x2*d2;
+      trace.putInt(0, (int)count);                   // sequence number within line
+      trace.putInt(4, (int)count);                   // sequence number within file
+      trace.putInt(8, inline);                       // field record
+      trace.putInt(12, crossline);                   // trace within field record
+      trace.putInt(20, (int)count);                  // cdp ensemble
+      trace.putShort(28, (short)1);                  // trace identification code, seismic
+      trace.putShort(114, (short)n3);                // samples in this trace
+      trace.putShort(116, (short)Math.min(d3, 65535)); // sample interval
+      trace.putInt(188, inline);
+      trace.putInt(192, crossline);
+  }
+  
+  // IEEE single to IBM single precision, truncating the mantissa; overflow saturates, underflow gives 0
+  private static int ieee_to_ibm(float value)
+  {
+      int bits = Float.floatToRawIntBits(value);
+      int sign = bits&0x80000000;
+      int exp = (bits>>>23)&0xff;
+      int frac = bits&0x7fffff;
+      if(exp==0)
+      {
+          return 0;
+      }
+      if(exp==255)
+      {
+          return sign|0x7fffffff;
+      }
+      // value = (frac|1<<23)/2^24 * 2^e, IBM wants a power of 16, so e is raised to a multiple of 4
+      frac |= 0x800000;
+      int e = exp-126;
+      int shift = (-e)&3;
+      int ibm_exp = (e+shift)/4+64;
+      if(ibm_exp>127)
+      {
+          return sign|0x7fffffff;
+      }
+      if(ibm_exp<0)
+      {
+          return 0;
+      }
+      return sign|(ibm_exp<<24)|(frac>>>shift);
   }
   
   public DistributedFile ( float[][][] data
@@ -76,6 +381,7 @@ class DistributedFile {
                          , String prefix
                          , String suffix
                          , String dir
+                         , String... options
                          ) throws VolumeIOException
   {
       _header = header;
@@ -87,6 +393,7 @@ class DistributedFile {
                       , prefix
                       , suffix
                       , dir
+                      , options
                       );
       init_dim();
       init(_header);
@@ -134,6 +441,7 @@ class DistributedFile {
                          , String prefix
                          , String suffix
                          , String dir
+                         , String... options
                          ) throws VolumeIOException
   {
       _header = header;
@@ -145,6 +453,7 @@ class DistributedFile {
                       , prefix
                       , suffix
                       , dir
+                      , options
                       );
       init_dim();
       init(_header);
@@ -162,6 +471,7 @@ class DistributedFile {
                                 , String prefix
                                 , String suffix
                                 , String dir
+                                , String... options
                                 ) throws VolumeIOException
   {
       try
@@ -186,8 +496,15 @@ class DistributedFile {
           
           file.println("prefix="+prefix);
           file.println("suffix="+suffix);
+          file.println("dir_tokens=exact");
           file.println("dir="+dir);
           
+          // extra header lines, e.g. "codec=float"
+          for(String option : options)
+          {
+              file.println(option);
+          }
+          
           file.close();
       }
       catch(IOException e)
@@ -204,6 +521,7 @@ class DistributedFile {
     check_errors();
     generate_directories();
     generate_filenames();
+    recover_journal();
   }
     
   private void parse(String line) throws VolumeIOException
@@ -291,6 +609,51 @@ class DistributedFile {
         //System.out.println("p3="+p3);
         return;
       }
+      if(line.startsWith("codec="))
+      {
+        codec = parse_option(Codec.class, "codec", line.substring(6).trim());
+        return;
+      }
+      if(line.startsWith("lod="))
+      {
+        lod_levels = Integer.parseInt(line.substring(4).trim());
+        return;
+      }
+      if(line.startsWith("placement="))
+      {
+        placement = parse_option(Placement.class, "placement", line.substring(10).trim());
+        return;
+      }
+      if(line.startsWith("checksum="))
+      {
+        checksum = parse_option(Checksum.class, "checksum", line.substring(9).trim());
+        return;
+      }
+      if(line.startsWith("replication="))
+      {
+        replication = Integer.parseInt(line.substring(12).trim());
+        return;
+      }
+      if(line.startsWith("weights="))
+      {
+        String[] tokens = line.substring(8).trim().split("\\s+");
+        weights = new int[tokens.length];
+        for(int i=0;i<tokens.length;i++)
+        {
+          weights[i] = Integer.parseInt(tokens[i]);
+        }
+        return;
+      }
+      if(line.startsWith("layout="))
+      {
+        layout = parse_option(Layout.class, "layout", line.substring(7).trim());
+        return;
+      }
+      if(line.startsWith("truncate_bits="))
+      {
+        truncate_bits = Integer.parseInt(line.substring(14).trim());
+        return;
+      }
       if(line.substring(0,7).contains("prefix="))
       {
         prefix = line.substring(7);
@@ -303,6 +666,11 @@ class DistributedFile {
         //System.out.println("suffix="+suffix);
         return;
       }
+      if(line.startsWith("dir_tokens="))
+      {
+        dir_tokens = parse_option(DirTokens.class, "dir_tokens", line.substring(11).trim());
+        return;
+      }
       if(line.substring(0,4).contains("dir="))
       {
         String dir = line.substring(4);
@@ -329,6 +697,10 @@ class DistributedFile {
             stringBuffer.append("\n");
           }
           fileReader.close();
+          for(Dir dir : dirs)
+          {
+            dir.tokenize(dir_tokens);
+          }
       }
       catch(IOException e)
       {
@@ -358,11 +730,45 @@ class DistributedFile {
     
     suffix = ".bin";
     
+    codec = Codec.RAW;
+    
+    truncate_bits = 0;
+    
+    layout = Layout.FILES;
+    
+    lod_levels = 0;
+    
+    placement = Placement.ROUND_ROBIN;
+    
+    weights = null;
+    
+    replication = 1;
+    
+    checksum = Checksum.NONE;
+    
+    dir_tokens = DirTokens.LEGACY;
+    
     dirs = new ArrayList<Dir>();
   }
   
+  private <E extends Enum<E>> E parse_option(Class<E> type,String key,String name) throws VolumeIOException
+  {
+    for(E e : type.getEnumConstants())
+    {
+      if(e.name().equalsIgnoreCase(name))
+      {
+        return e;
+      }
+    }
+    throw VolumeIOException.fromMessage("unknown "+key+":"+name);
+  }
+  
   private void check_errors() throws VolumeIOException
   {
+    if(truncate_bits < 0 || truncate_bits > 23)
+    {
+      throw VolumeIOException.fromMessage("truncate_bits should be in [0,23]");
+    }
     if(o1 < 0)
     {
       throw VolumeIOException.fromMessage("o1 < 0");
@@ -410,9 +816,13 @@ class DistributedFile {
     
   }
   
+  private static final String MAX_REQUESTS = "max_requests=";
+  
   private class Dir
   {
+    String line;
     List<String> data;
+    int max_requests = 0; // requests in flight per directory of the line, 0 leaves it to threads_per_directory
     String get_dir(int index)
     {
       return data.get(1+index);
@@ -421,8 +831,32 @@ class DistributedFile {
     {
       return data.size()-1;
     }
-    Dir(String dir) throws VolumeIOException
+    // a host:port token puts the directories of the line behind a TileServer, a bare host name keeps them local
+    InetSocketAddress remote_address() throws VolumeIOException
+    {
+      String host = data.get(0);
+      int colon = host.lastIndexOf(':');
+      if(colon<0)
+      {
+        return null;
+      }
+      try
+      {
+        return InetSocketAddress.createUnresolved(host.substring(0, colon), Integer.parseInt(host.substring(colon+1)));
+      }
+      catch(IllegalArgumentException e)
+      {
+        throw VolumeIOException.fromMessage("malformed host:"+host);
+      }
+    }
+    Dir(String dir)
+    {
+      line = dir;
+    }
+    // split once the whole header is read, the dir_tokens= line may follow the dir= lines
+    void tokenize(DirTokens tokens) throws VolumeIOException
     {
+      String dir = this.line;
       int quote_count=0;
       int start_ind = 0;
       int end_ind = 0;
@@ -438,9 +872,22 @@ class DistributedFile {
         {
           if(dir.getBytes()[index]==' '||index+1==dir.length())
           {
-            end_ind = index;
+            end_ind = dir.getBytes()[index]==' ' ? index : index+1;
             line = dir.substring(start_ind, end_ind);
             start_ind = index+1;
+            if(data.size()>0&&line.startsWith(MAX_REQUESTS))
+            {
+              max_requests(line);
+              continue;
+            }
+            if(tokens==DirTokens.LEGACY&&end_ind==dir.length())
+            {
+              line = line.substring(0, line.length()-1);
+            }
+            if(line.length()==0)
+            {
+              continue;
+            }
             data.add(line);
           }
         }
@@ -460,18 +907,51 @@ class DistributedFile {
       }
       
     }
+    
+    // applies to every directory of the line; any other token is a directory, '=' or not
+    private void max_requests(String token) throws VolumeIOException
+    {
+      try
+      {
+        max_requests = Integer.parseInt(token.substring(MAX_REQUESTS.length()));
+      }
+      catch(NumberFormatException e)
+      {
+        throw VolumeIOException.fromMessage("malformed dir option:"+token);
+      }
+      if(max_requests<1)
+      {
+        throw VolumeIOException.fromMessage("max_requests < 1:"+token);
+      }
+    }
   }
   
-  private void generate_directories()
+  private void generate_directories() throws VolumeIOException
   {
     directories = new ArrayList<String>();
+    List<TileServer.Client> hosts = new ArrayList<TileServer.Client>();
+    Map<String,TileServer.Client> clients = new HashMap<String,TileServer.Client>();
     for(int k=0;k<dirs.size();k++)
     {
+      InetSocketAddress address = dirs.get(k).remote_address();
+      TileServer.Client client = null;
+      if(address!=null)
+      {
+        client = clients.get(address.toString());
+        if(client==null)
+        {
+          client = new TileServer.Client(new InetSocketAddress(address.getHostString(), address.getPort()));
+          clients.put(address.toString(), client);
+        }
+      }
       for(int i=0;i<dirs.get(k).size();i++)
       {
         directories.add(dirs.get(k).get_dir(i));
+        hosts.add(client);
       }
     }
+    remote_hosts = hosts.toArray(new TileServer.Client[hosts.size()]);
+    remote = !clients.isEmpty();
     //System.out.println("directories:"+directories.size());
   }
   
@@ -482,137 +962,319 @@ class DistributedFile {
     int f3 = (int)Math.ceil((float)n3/(float)p3);
     //System.out.println("f1:"+f1+" f2:"+f2+" f3:"+f3);
     filenames = new String[f1][f2][f3];
-    mutex = new ReentrantLock[f1][f2][f3];
+    tile_locks = new ReadWriteLock[Math.min(f1*f2*f3,MAX_TILE_LOCKS)];
+    for(int i=0;i<tile_locks.length;i++)
+    {
+      tile_locks[i] = new ReentrantReadWriteLock(true);
+    }
+    if(replication<1||replication>directories.size())
+    {
+      throw VolumeIOException.fromMessage("replication should be in [1,"+directories.size()+"]");
+    }
+    int[] wheel = placement_wheel();
+    // replica r of a tile goes r steps further along the host alternating directory order than its first copy
+    int[] order_of = new int[directories.size()];
+    for(int i=0;i<directory_order.length;i++)
+    {
+      order_of[directory_order[i]] = i;
+    }
+    tile_dirs = new int[f1*f2*f3*replication];
+    tile_slots = new int[f1*f2*f3*replication];
+    directory_tiles = new int[directories.size()];
+    replica_latency = new long[directories.size()];
     for(int i1=0,k=0;i1<f1;i1++)
     {
       for(int i2=0;i2<f2;i2++)
       {
         for(int i3=0;i3<f3;i3++,k++)
         {
-          filenames[i1][i2][i3] = directories.get(k%directories.size())+"/"+prefix+(i1*p1)+"_"+(i2*p2)+"_"+(i3*p3)+suffix;
-          mutex[i1][i2][i3] = new ReentrantLock(true);
+          int dir = place(i1,i2,i3,k,wheel);
+          filenames[i1][i2][i3] = directories.get(dir)+"/"+prefix+(i1*p1)+"_"+(i2*p2)+"_"+(i3*p3)+suffix;
+          for(int r=0;r<replication;r++)
+          {
+            int replica_dir = r==0 ? dir : directory_order[(order_of[dir]+r)%directory_order.length];
+            tile_dirs[k*replication+r] = replica_dir;
+            tile_slots[k*replication+r] = directory_tiles[replica_dir]++;
+          }
           //System.out.println(filenames[i1][i2][i3]);
         }
       }
     }
-  }
-  
-  public void clean() throws VolumeIOException
-  {
-    for(int i1=0,k=0;i1<filenames.length;i1++)
+    if(remote&&layout!=Layout.FILES)
     {
-      for(int i2=0;i2<filenames[0].length;i2++)
+      throw VolumeIOException.fromMessage("directories behind a tile server need layout=files");
+    }
+    if(remote&&checksum!=Checksum.NONE)
+    {
+      throw VolumeIOException.fromMessage("checksums need local directories");
+    }
+    store = layout==Layout.CONTAINER ? new ContainerStore() : new FileStore();
+    checksums = null;
+    if(checksum!=Checksum.NONE)
+    {
+      checksums = new ChecksumIndex[directories.size()];
+      for(int i=0;i<checksums.length;i++)
       {
-        for(int i3=0;i3<filenames[0][0].length;i3++,k++)
-        {
-          filenames[i1][i2][i3] = directories.get(k%directories.size())+"/"+prefix+(i1*p1)+"_"+(i2*p2)+"_"+(i3*p3)+suffix;
-          //System.out.println("deleting:"+filenames[i1][i2][i3]);
-          File f = new File(filenames[i1][i2][i3]);
-          if(f.exists())
-          {
-            boolean bool = f.delete();
-            if(bool)
-            {
-              //System.out.println("file deleted:"+filenames[i1][i2][i3]);
-            }
-          }
-          else
-          {
-            //throw new IOException("file to be deleted "+filenames[i1][i2][i3]+" does not exist.");
-          }
-        }
+        checksums[i] = new ChecksumIndex(directories.get(i));
       }
     }
   }
   
-  public void purge() throws VolumeIOException
+  // the first header parser cut the last character off the last token of a dir= line unless it was followed by a
+  // space, e.g. it read "dir=localhost C:/DATA E:/DATA2" as C:/DATA and E:/DATA; headers without a dir_tokens=
+  // line were read that way and keep being read that way, so their tiles are found where they were written.
+  // To read such a header as written, move the tiles of that directory and add dir_tokens=exact
+  private enum DirTokens
   {
-    for(int i=0;i<directories.size();i++)
+    LEGACY, // an unquoted last token ending the line loses its last character, a quoted one only its closing quote
+    EXACT   // what new headers get
+  }
+  
+  private enum Placement
+  {
+    ROUND_ROBIN, // tile k in directory k%D, the original layout
+    HASH,        // scrambled tile number, even on average for any access pattern
+    DIAGONAL,    // (t1+t2+t3)%D, every axis aligned plane of tiles is a latin square over the directories
+    ZORDER,      // morton code of the tile %D, any 2x2x2 block of tiles lands on up to 8 directories
+    WEIGHTED     // the diagonal over a wheel holding directory i weights[i] times
+  }
+  
+  // the wheel lists directories in the order placement hands them out, hosts alternate so that
+  // neighbouring tiles sit on different hosts; WEIGHTED repeats each directory by its weight
+  private int[] placement_wheel() throws VolumeIOException
+  {
+    List<Integer> spread = new ArrayList<Integer>();
+    for(int j=0;spread.size()<directories.size();j++)
     {
-      File folder = new File(directories.get(i)+"/");
-      File[] listOfFiles = folder.listFiles();
-      for(File f : listOfFiles)
+      int base = 0;
+      for(int h=0;h<dirs.size();h++)
       {
-        //System.out.println("deleting:"+f.getAbsolutePath());
-        if(f.exists()&&f.isFile())
-        {
-          boolean bool = f.delete();
-          if(bool)
-          {
-            //System.out.println("file deleted:"+f.getAbsolutePath());
-          }
-        }
-        else
+        if(j<dirs.get(h).size())
         {
-          //throw new IOException("file to be deleted "+filenames[i1][i2][i3]+" does not exist.");
+          spread.add(base+j);
         }
+        base += dirs.get(h).size();
       }
     }
-  }
-
-  public float read_data_global_coords(int i1,int i2,int i3) throws VolumeIOException
-  {
-    if(i1<o1)
+    directory_order = new int[spread.size()];
+    for(int i=0;i<directory_order.length;i++)
     {
-      throw VolumeIOException.fromMessage("i1 < o1");
+      directory_order[i] = spread.get(i);
     }
-    if(i1>o1+d1*n1)
+    if(placement!=Placement.WEIGHTED)
     {
-      throw VolumeIOException.fromMessage("i1 > o1+d1*n1");
+      return directory_order.clone();
     }
-    if(i2<o2)
+    if(weights==null||weights.length!=directories.size())
     {
-      throw VolumeIOException.fromMessage("i2 < o2");
+      throw VolumeIOException.fromMessage("placement=weighted needs one weight per directory");
     }
-    if(i2>o2+d2*n2)
+    int total = 0;
+    for(int w : weights)
     {
-      throw VolumeIOException.fromMessage("i2 > o2+d2*n2");
+      if(w<0)
+      {
+        throw VolumeIOException.fromMessage("weights should not be negative");
+      }
+      total += w;
     }
-    if(i3<o3)
+    if(total==0||total>MAX_PLACEMENT_WHEEL)
     {
-      throw VolumeIOException.fromMessage("i3 < o3");
+      throw VolumeIOException.fromMessage("weights should sum to a value in [1,"+MAX_PLACEMENT_WHEEL+"]");
     }
-    if(i3>o3+d3*n3)
+    // smooth weighted round robin, so the copies of a directory are spaced out along the wheel
+    int[] wheel = new int[total];
+    int[] current = new int[directories.size()];
+    for(int i=0;i<total;i++)
     {
-      throw VolumeIOException.fromMessage("i3 > o3+d3*n3");
+      int best = -1;
+      for(int dir : spread)
+      {
+        current[dir] += weights[dir];
+        if(weights[dir]>0&&(best<0||current[dir]>current[best]))
+        {
+          best = dir;
+        }
+      }
+      current[best] -= total;
+      wheel[i] = best;
     }
-    if((i1-o1)%d1!=0)
+    return wheel;
+  }
+  
+  private static final int MAX_PLACEMENT_WHEEL = 1<<16;
+  
+  private int place(int t1,int t2,int t3,int k,int[] wheel)
+  {
+    switch(placement)
     {
-      throw VolumeIOException.fromMessage("(i1-o1) mod d1 != 0");
+      case HASH:
+        return wheel[Math.floorMod(mix(k), wheel.length)];
+      case DIAGONAL:
+      case WEIGHTED:
+        return wheel[(t1+t2+t3)%wheel.length];
+      case ZORDER:
+        return wheel[(int)Long.remainderUnsigned(morton(t1,t2,t3), wheel.length)];
+      default:
+        return k%directories.size();
     }
-    if((i2-o2)%d2!=0)
-    {
-      throw VolumeIOException.fromMessage("(i2-o2) mod d2 != 0");
+  }
+  
+  // murmur3 finalizer
+  private static int mix(int h)
+  {
+    h ^= h>>>16;
+    h *= 0x85ebca6b;
+    h ^= h>>>13;
+    h *= 0xc2b2ae35;
+    h ^= h>>>16;
+    return h;
+  }
+  
+  private static long morton(int t1,int t2,int t3)
+  {
+    long z = 0;
+    for(int b=0;b<21;b++)
+    {
+      z |= ((long)((t3>>>b)&1))<<(3*b);
+      z |= ((long)((t2>>>b)&1))<<(3*b+1);
+      z |= ((long)((t1>>>b)&1))<<(3*b+2);
     }
-    if((i3-o3)%d3!=0)
+    return z;
+  }
+  
+  // number of tiles of the region that each directory holds, e.g. to compare placements for an access pattern
+  public int[] directory_load(int or1,int or2,int or3,int nr1,int nr2,int nr3) throws VolumeIOException
+  {
+    check_region(or1,or2,or3,nr1,nr2,nr3);
+    int[] load = new int[directories.size()];
+    for(Tile tile : get_tiles(or1,or2,or3,nr1,nr2,nr3))
     {
-      throw VolumeIOException.fromMessage("(i3-o3) mod d3 != 0");
+      load[tile_dir(tile.key, 0)]++;
+    }
+    return load;
+  }
+  
+  public void clean() throws VolumeIOException
+  {
+    tile_maps.clear();
+    tile_cache.clear();
+    prefetcher.clear();
+    write_back.clear();
+    store.clean();
+    if(checksums!=null)
+    {
+      for(ChecksumIndex index : checksums)
+      {
+        index.delete();
+      }
     }
     try
     {
-      FileInputStream in = new FileInputStream(filenames[(i1-o1)/(p1*d1)][(i2-o2)/(p2*d2)][(i3-o3)/(p3*d3)]);
-      int orig1 = ((i1-o1)/(p1*d1))*p1;
-      int orig2 = ((i2-o2)/(p2*d2))*p2;
-      int orig3 = ((i3-o3)/(p3*d3))*p3;
-      int skip = 4*((((i1-o1)/d1-orig1)*p2+((i2-o2)/d2-orig2))*p3+((i3-o3)/d3-orig3));
-      long ret = in.skip(skip);
-      if(ret>=0)
+      // a journal left by an earlier volume under this header must not replay over the new one
+      Files.deleteIfExists(Paths.get(_header+JOURNAL_SUFFIX));
+    }
+    catch(IOException e)
+    {
+      throw VolumeIOException.fromMessage(e.getMessage());
+    }
+    synchronized(stale_tiles)
+    {
+      stale_tiles.clear();
+    }
+    for(int l=1;new File(_header+".lod"+l).exists();l++)
+    {
+      get_level(l).clean();
+    }
+  }
+  
+  public void purge() throws VolumeIOException
+  {
+    tile_maps.clear();
+    tile_cache.clear();
+    prefetcher.clear();
+    write_back.clear();
+    store.close();
+    close_checksums();
+    close_levels();
+    synchronized(stale_tiles)
+    {
+      stale_tiles.clear();
+    }
+    for(int i=0;i<directories.size();i++)
+    {
+      if(remote_hosts[i]!=null)
       {
-        ByteBuffer buf = ByteBuffer.allocate(4);
-        in.read(buf.array());
-        in.close();
-        return buf.getFloat(0);
+        try
+        {
+          remote_hosts[i].purge(directories.get(i));
+        }
+        catch(IOException e)
+        {
+          throw VolumeIOException.fromMessage(e.getMessage());
+        }
+        continue;
       }
-      else
+      File folder = new File(directories.get(i)+"/");
+      File[] listOfFiles = folder.listFiles();
+      for(File f : listOfFiles)
       {
-        in.close();
-        throw VolumeIOException.fromMessage("index outside of range:"+i1+" ["+o1+","+(o1+n1)+"]; "+i2+" ["+o2+","+(o2+n2)+"]; "+i3+" ["+o3+","+(o3+n3)+"]; ");
+        //System.out.println("deleting:"+f.getAbsolutePath());
+        if(f.exists()&&f.isFile())
+        {
+          boolean bool = f.delete();
+          if(bool)
+          {
+            //System.out.println("file deleted:"+f.getAbsolutePath());
+          }
+        }
+        else
+        {
+          //throw new IOException("file to be deleted "+filenames[i1][i2][i3]+" does not exist.");
+        }
       }
     }
-    catch(IOException e)
+  }
+
+  public float read_data_global_coords(int i1,int i2,int i3) throws VolumeIOException
+  {
+    if(i1<o1)
     {
-        throw VolumeIOException.fromMessage(e.getMessage());
+      throw VolumeIOException.fromMessage("i1 < o1");
+    }
+    if(i1>o1+d1*n1)
+    {
+      throw VolumeIOException.fromMessage("i1 > o1+d1*n1");
+    }
+    if(i2<o2)
+    {
+      throw VolumeIOException.fromMessage("i2 < o2");
+    }
+    if(i2>o2+d2*n2)
+    {
+      throw VolumeIOException.fromMessage("i2 > o2+d2*n2");
+    }
+    if(i3<o3)
+    {
+      throw VolumeIOException.fromMessage("i3 < o3");
+    }
+    if(i3>o3+d3*n3)
+    {
+      throw VolumeIOException.fromMessage("i3 > o3+d3*n3");
+    }
+    if((i1-o1)%d1!=0)
+    {
+      throw VolumeIOException.fromMessage("(i1-o1) mod d1 != 0");
     }
+    if((i2-o2)%d2!=0)
+    {
+      throw VolumeIOException.fromMessage("(i2-o2) mod d2 != 0");
+    }
+    if((i3-o3)%d3!=0)
+    {
+      throw VolumeIOException.fromMessage("(i3-o3) mod d3 != 0");
+    }
+    return read_tile_sample((i1-o1)/d1,(i2-o2)/d2,(i3-o3)/d3);
   }
   
   public float read_data_local_coords(int i1,int i2,int i3) throws VolumeIOException
@@ -641,34 +1303,53 @@ class DistributedFile {
     {
       throw VolumeIOException.fromMessage("i3 > n3");
     }
+    return read_tile_sample(i1,i2,i3);
+  }
+  
+  private float read_tile_sample(int x1,int x2,int x3) throws VolumeIOException
+  {
+    int t1 = x1/p1;
+    int t2 = x2/p2;
+    int t3 = x3/p3;
+    Tile tile = new Tile(t1*p1,t2*p2,t3*p3,filenames[t1][t2][t3]);
+    tile.lock_read();
     try
     {
-      FileInputStream in = new FileInputStream(filenames[i1/p1][i2/p2][i3/p3]);
-      int orig1 = (i1/p1)*p1;
-      int orig2 = (i2/p2)*p2;
-      int orig3 = (i3/p3)*p3;
-      int skip = 4*(((i1-orig1)*p2+(i2-orig2))*p3+(i3-orig3));
-      long ret = in.skip(skip);
+      int index = ((x1-tile.o1)*p2+(x2-tile.o2))*p3+(x3-tile.o3);
+      if(memory_mapped||tile_cache.is_enabled()||write_back.is_enabled()||codec!=Codec.RAW||layout!=Layout.FILES||replication>1||remote||verify_all())
+      {
+        return read_tile(tile, tile_buffers.get().buf).get(index);
+      }
+      FileInputStream in = new FileInputStream(tile.filename);
+      long ret = in.skip(4*index);
       if(ret>=0)
       {
         ByteBuffer buf = ByteBuffer.allocate(4);
-        in.read(buf.array());
+        int read = in.read(buf.array());
         in.close();
+        if(read<4)
+        {
+          throw VolumeIOException.fromMessage("tile "+tile.filename+" ended before sample "+index);
+        }
         return buf.getFloat(0);
       }
       else
       {
         in.close();
-        throw VolumeIOException.fromMessage("index outside of range:"+i1+" ["+o1+","+(o1+n1)+"]; "+i2+" ["+o2+","+(o2+n2)+"]; "+i3+" ["+o3+","+(o3+n3)+"]; ");
+        throw VolumeIOException.fromMessage("index outside of range:"+x1+" ["+0+","+n1+"]; "+x2+" ["+0+","+n2+"]; "+x3+" ["+0+","+n3+"]; ");
       }
     }
     catch(IOException e)
     {
-        throw VolumeIOException.fromMessage(e.getMessage());
+      throw VolumeIOException.fromMessage(e.getMessage());
+    }
+    finally
+    {
+      tile.unlock_read();
     }
   }
   
-  public float[][][] read_data_local_coords(int or1,int or2,int or3,int nr1,int nr2,int nr3) throws VolumeIOException
+  private void check_region(int or1,int or2,int or3,int nr1,int nr2,int nr3) throws VolumeIOException
   {
     if(or1<0)
     {
@@ -694,588 +1375,4487 @@ class DistributedFile {
     {
       throw VolumeIOException.fromMessage("or3+nr3 > n3");
     }
-  
-    int min1=n1,max1=0;
-    int min2=n2,max2=0;
-    int min3=n3,max3=0;
-    global_mutex.lock();
-    workers = new ArrayList<Worker>();
-    for(int i=0;i<directories.size()*Runtime.getRuntime().availableProcessors();i++)
-    {
-      workers.add(new TileReadWorker(i));
-    }
-
-    int index = 0;
-    for (int i1 = 0; i1 < filenames.length; i1++) {
-      for (int i2 = 0; i2 < filenames[0].length; i2++) {
-        for (int i3 = 0; i3 < filenames[0][0].length; i3++) {
-          if (i1 * p1 >= (or1 / p1) * p1 && i1 * p1 < ((or1 + nr1) / p1) * p1 + p1) {
-            if (i2 * p2 >= (or2 / p2) * p2 && i2 * p2 < ((or2 + nr2) / p2) * p2 + p2) {
-              if (i3 * p3 >= (or3 / p3) * p3 && i3 * p3 < ((or3 + nr3) / p3) * p3 + p3) {
-                Tile tile = new Tile(i1 * p1, i2 * p2, i3 * p3, filenames[i1][i2][i3],
-                    mutex[i1][i2][i3]);
-                workers.get(index % workers.size()).add(tile);
-                index++;
-                min1 = Math.min(i1 * p1, min1);
-                min2 = Math.min(i2 * p2, min2);
-                min3 = Math.min(i3 * p3, min3);
-                max1 = Math.max(i1 * p1 + p1, max1);
-                max2 = Math.max(i2 * p2 + p2, max2);
-                max3 = Math.max(i3 * p3 + p3, max3);
-              }
-            }
-          }
-        }
-
-      }
-
-    }
-    //System.out.println(min1+" "+max1);
-    //System.out.println(min2+" "+max2);
-    //System.out.println(min3+" "+max3);
-    if(max1<min1||max2<min2||max3<min3)
+    if(nr1<1||nr2<1||nr3<1)
     {
-      global_mutex.unlock();
       throw VolumeIOException.fromMessage("probe outside of volume.");
     }
-    tmp_buf = new float[max1-min1][max2-min2][max3-min3];
-    O1 = min1;
-    O2 = min2;
-    O3 = min3;
-    
-    runAll(workers);
-    
-    joinAll(workers);
-    
-    workers = null;
-
-    output_buf = new float[nr1][nr2][nr3];
-    for(int x1=or1;x1<or1+nr1;x1++)
+  }
+  
+  private List<Tile> get_tiles(int or1,int or2,int or3,int nr1,int nr2,int nr3)
+  {
+    List<Tile> tiles = new ArrayList<Tile>();
+    for(int i1=or1/p1;i1<=(or1+nr1-1)/p1;i1++)
     {
-      for(int x2=or2;x2<or2+nr2;x2++)
+      for(int i2=or2/p2;i2<=(or2+nr2-1)/p2;i2++)
       {
-        for(int x3=or3;x3<or3+nr3;x3++)
+        for(int i3=or3/p3;i3<=(or3+nr3-1)/p3;i3++)
         {
-          output_buf[x1-or1][x2-or2][x3-or3] = tmp_buf[x1-min1][x2-min2][x3-min3]; 
+          tiles.add(new Tile(i1*p1,i2*p2,i3*p3,filenames[i1][i2][i3]));
         }
       }
     }
-    
-    tmp_buf = null;
-    global_mutex.unlock();
-    return output_buf;
+    return tiles;
   }
   
-  
-  public float[][][] read_data()
+  private void read_region(final Region region) throws VolumeIOException
   {
-    global_mutex.lock();
-    output_buf = new float[n1][n2][n3];
-    workers = new ArrayList<Worker>();
-    for(int i=0;i<directories.size()*Runtime.getRuntime().availableProcessors();i++)
-    {
-      workers.add(new TotalReadWorker(i));
-    }
-    
-    int index = 0;
-    for(int i1=0;i1<filenames.length;i1++)
+    run_tiles(get_tiles(region.or1,region.or2,region.or3,region.nr1,region.nr2,region.nr3), new TileTask()
     {
-      for(int i2=0;i2<filenames[0].length;i2++)
+      @Override
+      public void run(Tile tile) throws IOException
       {
-        for(int i3=0;i3<filenames[0][0].length;i3++,index++)
-        {
-          Tile tile = new Tile(i1*p1,i2*p2,i3*p3,filenames[i1][i2][i3],mutex[i1][i2][i3]);
-          workers.get(index%workers.size()).add(tile);
-        }
+        read_tile_into(region, tile);
       }
+    });
+    if(!memory_mapped)
+    {
+      prefetch(region);
     }
-
-    runAll(workers);
-    
-    joinAll(workers);
-    
-    workers = null;
-
-    global_mutex.unlock();
-    return output_buf;
   }
   
-
-  public void write_data_local_coordinates(int or1,int or2,int or3,final float[][][] D) throws VolumeIOException
+  // issued once a window was read, so prefetches never queue ahead of the reads the caller is waiting for
+  private void prefetch(Region region)
   {
-    int nr1 = D.length;
-    int nr2 = D[0].length;
-    int nr3 = D[0][0].length;
-        
-    if(or1<0)
+    List<Tile> tiles;
+    final long generation;
+    synchronized(prefetcher)
     {
-      throw VolumeIOException.fromMessage("or1 < 0");
+      if(!prefetcher.is_enabled())
+      {
+        return;
+      }
+      tiles = prefetcher.observe(region.or1,region.or2,region.or3,region.nr1,region.nr2,region.nr3);
+      generation = prefetcher.generation;
     }
-    if(or1+nr1>n1)
+    if(tiles.isEmpty())
     {
-      throw VolumeIOException.fromMessage("or1+nr1 > n1");
+      return;
     }
-    if(or2<0)
+    submit_tiles(tiles, new TileTask()
     {
-      throw VolumeIOException.fromMessage("or2 < 0");
-    }
-    if(or2+nr2>n2)
+      @Override
+      public void run(Tile tile) throws IOException
+      {
+        float[] data = null;
+        tile.lock_read();
+        try
+        {
+          if(write_back.get(tile.key)==null&&!tile_cache.contains(tile.key))
+          {
+            float[] arr = new float[p1*p2*p3];
+            read_tile_file(tile, tile_buffers.get().buf).get(arr);
+            data = arr;
+          }
+        }
+        finally
+        {
+          // handed over under the read lock, so a writer invalidates after the tile is buffered, never before
+          prefetcher.done(tile.key, generation, data);
+          tile.unlock_read();
+        }
+      }
+    });
+  }
+  
+  private void write_region(final Region region) throws VolumeIOException
+  {
+    if(durability==Durability.JOURNAL)
     {
-      throw VolumeIOException.fromMessage("or2+nr2 > n2");
+      write_region_journaled(region);
+      return;
     }
-    if(or3<0)
+    run_tiles(get_tiles(region.or1,region.or2,region.or3,region.nr1,region.nr2,region.nr3), new TileTask()
     {
-      throw VolumeIOException.fromMessage("or3 < 0");
-    }
-    if(or3+nr3>n3)
+      @Override
+      public void run(Tile tile) throws IOException
+      {
+        write_tile_from(region, tile);
+      }
+    });
+  }
+  
+  // all or nothing: the tiles are staged next to their files, forced in one parallel pass, and renamed over them
+  // only once the journal listing them ends with its commit line; the region's tiles stay write locked throughout,
+  // their locks taken in stripe order so that journaled writes cannot deadlock each other, and the staging runs
+  // on its own pool since the scheduler's threads may be held by requests waiting for those locks
+  private void write_region_journaled(final Region region) throws VolumeIOException
+  {
+    List<Tile> tiles = get_tiles(region.or1,region.or2,region.or3,region.nr1,region.nr2,region.nr3);
+    final FileStore files = (FileStore)store;
+    List<String> targets = new ArrayList<String>();
+    final List<String> records = new ArrayList<String>();
+    boolean[] stripes = new boolean[tile_locks.length];
+    for(Tile tile : tiles)
     {
-      throw VolumeIOException.fromMessage("or3+nr3 > n3");
+      stripes[tile.key%tile_locks.length] = true;
+      for(int r=0;r<replication;r++)
+      {
+        targets.add(files.filename(tile, r));
+      }
     }
-    
-    global_mutex.lock();
-    
-    tmp_buf = new float[nr1][nr2][nr3];
-    for(int x1=0;x1<nr1;x1++)
+    synchronized(journal_lock)
     {
-      for(int x2=0;x2<nr2;x2++)
+      for(int i=0;i<stripes.length;i++)
       {
-        for(int x3=0;x3<nr3;x3++)
+        if(stripes[i])
         {
-          tmp_buf[x1][x2][x3] = D[x1][x2][x3];
+          tile_locks[i].writeLock().lock();
         }
       }
-    }
-    
-    workers = new ArrayList<Worker>();
-    for(int i=0;i<directories.size()*Runtime.getRuntime().availableProcessors();i++)
-    {
-      workers.add(new TileWriterWorker(i));
-    }
-    
-    int min1=n1,max1=0;
-    int min2=n2,max2=0;
-    int min3=n3,max3=0;
-    int index = 0;
-    
-    for (int i1 = 0; i1 < filenames.length; i1++) {
-      for (int i2 = 0; i2 < filenames[0].length; i2++) {
-        for (int i3 = 0; i3 < filenames[0][0].length; i3++) {
-          if (i1 * p1 >= (or1 / p1) * p1 && i1 * p1 < ((or1 + nr1) / p1) * p1 + p1) {
-            if (i2 * p2 >= (or2 / p2) * p2 && i2 * p2 < ((or2 + nr2) / p2) * p2 + p2) {
-              if (i3 * p3 >= (or3 / p3) * p3 && i3 * p3 < ((or3 + nr3) / p3) * p3 + p3) {
-                Tile tile = new Tile(i1 * p1, i2 * p2, i3 * p3, filenames[i1][i2][i3],
-                    mutex[i1][i2][i3]);
-                tile.or1 = or1;
-                tile.or2 = or2;
-                tile.or3 = or3;
-                tile.nr1 = nr1;
-                tile.nr2 = nr2;
-                tile.nr3 = nr3;
-                workers.get(index % workers.size()).add(tile);
-                index++;
-                min1 = Math.min(i1 * p1, min1);
-                min2 = Math.min(i2 * p2, min2);
-                min3 = Math.min(i3 * p3, min3);
-                max1 = Math.max(i1 * p1 + p1, max1);
-                max2 = Math.max(i2 * p2 + p2, max2);
-                max3 = Math.max(i3 * p3 + p3, max3);
+      try
+      {
+        boolean committed = false;
+        try
+        {
+          write_journal(targets, null);
+          run_staged(tiles, new TileTask()
+          {
+            @Override
+            public void run(Tile tile) throws IOException
+            {
+              TileBuffers b = tile_buffers.get();
+              merge_tile(region, tile, b.arr, b.rbuf);
+              write_tile_file(tile, b.arr, records);
+            }
+          });
+          run_staged(tiles, new TileTask()
+          {
+            @Override
+            public void run(Tile tile) throws IOException
+            {
+              for(int r=0;r<replication;r++)
+              {
+                force(Paths.get(files.filename(tile, r)+TEMP_SUFFIX));
               }
             }
+          });
+          write_journal(targets, records);
+          committed = true;
+          commit_journal(targets, records);
+        }
+        catch(IOException e)
+        {
+          throw VolumeIOException.fromMessage(e.getMessage());
+        }
+        finally
+        {
+          // a failure after the commit line leaves the journal for recover_journal to finish on the next open
+          if(!committed)
+          {
+            abort_journal(targets);
+          }
+        }
+      }
+      finally
+      {
+        for(int i=0;i<stripes.length;i++)
+        {
+          if(stripes[i])
+          {
+            tile_locks[i].writeLock().unlock();
           }
         }
       }
     }
-    
-    runAll(workers);
-    
-    joinAll(workers);
-    
-    workers = null;
-    
-    tmp_buf = null;
-    
-    global_mutex.unlock();
-    
+    if(lod_levels>0)
+    {
+      synchronized(stale_tiles)
+      {
+        for(Tile tile : tiles)
+        {
+          stale_tiles.set(tile.key);
+        }
+      }
+    }
   }
   
-  public void write_data(final float[][][] D,boolean remove_existing) throws VolumeIOException
+  // one target file per line; on commit the checksum records follow a marker line, then a commit line
+  // naming how many lines precede it
+  private void write_journal(List<String> targets,List<String> records) throws IOException
   {
-    if(D.length!=n1)
+    Path path = Paths.get(_header+JOURNAL_SUFFIX);
+    if(records==null)
     {
-      throw VolumeIOException.fromMessage("n1 mismatch");
+      Files.write(path, targets, StandardCharsets.UTF_8);
+      return;
     }
-    if(D[0].length!=n2)
+    StringBuilder tail = new StringBuilder(JOURNAL_CHECKSUMS).append('\n');
+    for(String record : records)
     {
-      throw VolumeIOException.fromMessage("n2 mismatch");
+      tail.append(record).append('\n');
     }
-    if(D[0][0].length!=n3)
+    tail.append(JOURNAL_COMMIT).append(' ').append(targets.size()+1+records.size()).append('\n');
+    FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    try
     {
-      throw VolumeIOException.fromMessage("n3 mismatch");
+      write_fully(channel, ByteBuffer.wrap(tail.toString().getBytes(StandardCharsets.UTF_8)));
+      channel.force(true);
     }
-    global_mutex.lock();
-    if(remove_existing)
+    finally
     {
-      clean();
+      channel.close();
     }
-    
-    tmp_buf = new float[n1][n2][n3];
-    for(int x1=0;x1<n1;x1++)
+    force_directory(path.toAbsolutePath().getParent());
+  }
+  
+  private void commit_journal(List<String> targets,List<String> records) throws IOException
+  {
+    Set<Path> dirs = new LinkedHashSet<Path>();
+    for(String target : targets)
     {
-      for(int x2=0;x2<n2;x2++)
+      Path temp = Paths.get(target+TEMP_SUFFIX);
+      if(Files.exists(temp))
       {
-        for(int x3=0;x3<n3;x3++)
-        {
-          tmp_buf[x1][x2][x3] = D[x1][x2][x3];
-        }
+        Files.move(temp, Paths.get(target), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
       }
+      dirs.add(Paths.get(target).toAbsolutePath().getParent());
     }
-    
-    workers = new ArrayList<Worker>();
-    for(int i=0;i<directories.size()*Runtime.getRuntime().availableProcessors();i++)
+    for(Path dir : dirs)
     {
-      workers.add(new TotalWriterWorker(i));
+      force_directory(dir);
     }
-    
-    int index = 0;
-    for(int i1=0;i1<filenames.length;i1++)
+    if(checksums!=null&&!records.isEmpty())
     {
-      for(int i2=0;i2<filenames[0].length;i2++)
+      boolean[] touched = new boolean[checksums.length];
+      for(String record : records)
       {
-        for(int i3=0;i3<filenames[0][0].length;i3++,index++)
+        String[] fields = record.split(" ");
+        int dir = Integer.parseInt(fields[0]);
+        checksums[dir].put(Integer.parseInt(fields[1]), Integer.parseInt(fields[2]), Integer.parseInt(fields[3]));
+        touched[dir] = true;
+      }
+      // the journal is the only other copy of the records
+      for(int i=0;i<touched.length;i++)
+      {
+        if(touched[i])
         {
-          Tile tile = new Tile(i1*p1,i2*p2,i3*p3,filenames[i1][i2][i3],mutex[i1][i2][i3]);
-          workers.get(index%workers.size()).add(tile);
+          checksums[i].force();
         }
       }
     }
-    
-    runAll(workers);
-    
-    joinAll(workers);
-    
-    workers = null;
-    
-    tmp_buf = null;
-    
-    global_mutex.unlock();
-    
-  } 
+    Files.deleteIfExists(Paths.get(_header+JOURNAL_SUFFIX));
+  }
   
-  private class Tile
+  private void abort_journal(List<String> targets)
   {
-    int or1,or2,or3;
-    int nr1,nr2,nr3;
-    int o1,o2,o3;
-    String filename;
-    Lock mutex;
-    Tile(int o1,int o2,int o3,String filename,Lock mutex)
+    try
     {
-      this.o1 = o1;
-      this.o2 = o2;
-      this.o3 = o3;
-      this.filename = filename;
-      this.mutex = mutex;
+      for(String target : targets)
+      {
+        Files.deleteIfExists(Paths.get(target+TEMP_SUFFIX));
+      }
+      Files.deleteIfExists(Paths.get(_header+JOURNAL_SUFFIX));
+    }
+    catch(IOException e)
+    {
+      // staged tiles left behind are dropped by the next recovery or purge
+    }
+  }
+  
+  // finishes the journaled write a crash interrupted: replayed when its commit line made it to disk, rolled back otherwise
+  private void recover_journal() throws VolumeIOException
+  {
+    Path path = Paths.get(_header+JOURNAL_SUFFIX);
+    if(!Files.exists(path))
+    {
+      return;
+    }
+    try
+    {
+      List<String> lines = Files.readAllLines(path, StandardCharsets.UTF_8);
+      int last = lines.size()-1;
+      if(last>=0&&lines.get(last).equals(JOURNAL_COMMIT+" "+last))
+      {
+        int marker = lines.indexOf(JOURNAL_CHECKSUMS);
+        if(marker<0)
+        {
+          marker = last;
+        }
+        commit_journal(lines.subList(0, marker), lines.subList(Math.min(marker+1, last), last));
+      }
+      else
+      {
+        abort_journal(lines);
+      }
+    }
+    catch(IOException e)
+    {
+      throw VolumeIOException.fromMessage("journal recovery failed: "+e.getMessage());
+    }
+  }
+  
+  private enum Checksum
+  {
+    NONE,
+    CRC32C // of the stored bytes of every replica, kept per directory in an index next to the tiles
+  }
+  
+  public enum Verify
+  {
+    NEVER,       // checksums are only checked by scrub
+    WHOLE_TILES, // reads that fetch a whole tile check it, runs read out of a tile are not checked
+    ALWAYS       // every read fetches and checks whole tiles
+  }
+  
+  // a replica that fails its check is treated like one that could not be read, so with replication the
+  // next replica serves the read
+  public void set_verify(Verify verify)
+  {
+    this.verify = verify;
+  }
+  
+  public Verify get_verify()
+  {
+    return verify;
+  }
+  
+  private boolean verify_all()
+  {
+    return checksums!=null&&verify==Verify.ALWAYS;
+  }
+  
+  private static int crc32c(TileBuffers b,byte[] data,int length)
+  {
+    b.crc.reset();
+    b.crc.update(data, 0, length);
+    return (int)b.crc.getValue();
+  }
+  
+  // throws when the length or checksum of the bytes read for a replica differ from those written
+  private void verify(Tile tile,int replica,byte[] data,int length) throws IOException
+  {
+    if(checksums==null||verify==Verify.NEVER)
+    {
+      return;
+    }
+    check_checksum(tile, replica, data, length);
+  }
+  
+  // false when nothing was recorded for the replica
+  private boolean check_checksum(Tile tile,int replica,byte[] data,int length) throws IOException
+  {
+    long entry = checksums[tile_dir(tile.key, replica)].get(tile_slots[tile.key*replication+replica]);
+    int stored = (int)entry;
+    if(stored==0)
+    {
+      return false;
     }
-    void lock()
+    if(stored!=length)
     {
-      mutex.lock();
+      throw new IOException("tile "+tile.filename+" replica "+replica+" holds "+length+" bytes, "+stored+" were written");
     }
-    void unlock()
+    if(crc32c(tile_buffers.get(), data, length)!=(int)(entry>>>32))
     {
-      mutex.unlock();
+      throw new IOException("tile "+tile.filename+" replica "+replica+" fails its checksum");
     }
+    return true;
   }
   
-  public abstract class Worker implements Runnable
+  // per directory, the crc32c and length of the stored bytes of every replica in it, 8 bytes by slot;
+  // a zero length marks a replica never written, or written before checksums were kept
+  private class ChecksumIndex
   {
+    final String name;
     
-    protected List<Tile> tiles;
-      
-      private Thread thread;
-      
-      public Worker (int index)
+    private FileChannel channel;
+    
+    ChecksumIndex(String dir)
+    {
+      name = dir+"/"+prefix+"crc"+suffix;
+    }
+    
+    private synchronized FileChannel channel() throws IOException
+    {
+      if(channel==null)
       {
-        this.tiles = new ArrayList<Tile>();
-        thread = new Thread(this, String.format("Worker-%d", index));
+        channel = FileChannel.open(Paths.get(name), StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
       }
-
-      public void add(Tile tile)
+      return channel;
+    }
+    
+    // the checksum in the high and the length in the low 32 bits
+    long get(int slot) throws IOException
+    {
+      ByteBuffer entry = ByteBuffer.allocate(CHECKSUM_ENTRY_BYTES);
+      if(read_fully(channel(), entry, (long)slot*CHECKSUM_ENTRY_BYTES)<CHECKSUM_ENTRY_BYTES)
       {
-        tiles.add(tile);
+        return 0;
       }
-      
-      public void start()
+      return ((long)entry.getInt(0)<<32)|(entry.getInt(4)&0xffffffffL);
+    }
+    
+    void put(int slot,int crc,int length) throws IOException
+    {
+      ByteBuffer entry = ByteBuffer.allocate(CHECKSUM_ENTRY_BYTES);
+      entry.putInt(crc).putInt(length).flip();
+      FileChannel channel = channel();
+      while(entry.hasRemaining())
       {
-        thread.start();
+        channel.write(entry, (long)slot*CHECKSUM_ENTRY_BYTES+entry.position());
       }
-      
-      public boolean join(int ms) throws Throwable
+    }
+    
+    void force() throws IOException
+    {
+      channel().force(true);
+    }
+    
+    synchronized void close() throws IOException
+    {
+      if(channel!=null)
       {
-        thread.join(ms);
-        return !thread.isAlive();
+        channel.close();
+        channel = null;
       }
-
-
-      
+    }
+    
+    void delete() throws VolumeIOException
+    {
+      try
+      {
+        close();
+      }
+      catch(IOException e)
+      {
+        throw VolumeIOException.fromMessage(e.getMessage());
+      }
+      new File(name).delete();
+    }
   }
-
-
-  public class TotalReadWorker extends DistributedFile.Worker
+  
+  private void close_checksums() throws VolumeIOException
   {
+    if(checksums==null)
+    {
+      return;
+    }
+    try
+    {
+      for(ChecksumIndex index : checksums)
+      {
+        index.close();
+      }
+    }
+    catch(IOException e)
+    {
+      throw VolumeIOException.fromMessage(e.getMessage());
+    }
+  }
+  
+  public class ScrubReport
+  {
+    public final long replicas; // replicas whose stored bytes were checked
+    public final long unverified; // replicas stored without a checksum
+    public final long bytes;
+    public final long nanos;
+    public final List<String> corrupt; // one line per replica that failed or went missing
     
-    float [] arr;
-    
-    ByteBuffer rbuf;
+    ScrubReport(long replicas,long unverified,long bytes,long nanos,List<String> corrupt)
+    {
+      this.replicas = replicas;
+      this.unverified = unverified;
+      this.bytes = bytes;
+      this.nanos = nanos;
+      this.corrupt = corrupt;
+    }
     
-    ByteBuffer buf;
-
-    public TotalReadWorker(int index) {
-      super(index);
-      
-      buf = ByteBuffer.allocate(Float.BYTES*p1*p2*p3);
+    public double megabytes_per_second()
+    {
+      return nanos>0 ? bytes*1e9/nanos/(1<<20) : 0;
     }
-
+    
     @Override
-    public void run()
-      {
-      for(int k=0;k<tiles.size();k++)
+    public String toString()
+    {
+      return replicas+" replicas, "+unverified+" unverified, "+corrupt.size()+" corrupt, "+String.format("%.1f MB/s", megabytes_per_second());
+    }
+  }
+  
+  // reads the stored bytes of every replica of every tile and checks them against their checksums; the reads
+  // go through the I/O scheduler, so every directory is read at once, each up to its cap
+  public ScrubReport scrub() throws VolumeIOException
+  {
+    if(checksums==null)
+    {
+      throw VolumeIOException.fromMessage("scrub needs checksum=crc32c in the header");
+    }
+    flush();
+    long start = System.nanoTime();
+    final AtomicLong replicas = new AtomicLong();
+    final AtomicLong unverified = new AtomicLong();
+    final AtomicLong bytes = new AtomicLong();
+    final List<String> corrupt = new ArrayList<String>();
+    try
+    {
+      submit_tiles(get_tiles(0,0,0,n1,n2,n3), new TileTask()
       {
-        try {
-          Tile tile = tiles.get(k);
-          tile.lock();
-          FileInputStream in = new FileInputStream(tile.filename);
-          in.read(buf.array());
-          in.close();
-          for(int x1=tile.o1,i=0;x1<tile.o1+p1;x1++)
+        @Override
+        public void run(Tile tile) throws IOException
+        {
+          tile.lock_read();
+          try
           {
-            for(int x2=tile.o2;x2<tile.o2+p2;x2++)
+            for(int r=0;r<replication;r++)
             {
-              for(int x3=tile.o3;x3<tile.o3+p3;x3++,i++)
+              if(!store.exists(tile, r))
+              {
+                // never written unless its checksum entry says otherwise
+                int written = (int)checksums[tile_dir(tile.key, r)].get(tile_slots[tile.key*replication+r]);
+                if(written!=0)
+                {
+                  synchronized(corrupt)
+                  {
+                    corrupt.add("tile "+tile.filename+" replica "+r+" is missing, "+written+" bytes were written");
+                  }
+                  replicas.incrementAndGet();
+                }
+                continue;
+              }
+              int length = store.length(tile, r);
+              byte[] data = tile_buffers.get().packed(length);
+              try
+              {
+                int read = store.read(tile, r, data, length);
+                bytes.addAndGet(read);
+                if(!check_checksum(tile, r, data, read))
+                {
+                  unverified.incrementAndGet();
+                }
+              }
+              catch(IOException e)
               {
-                output_buf[x1][x2][x3] = buf.getFloat(4*i); 
+                synchronized(corrupt)
+                {
+                  corrupt.add(e.getMessage());
+                }
               }
+              replicas.incrementAndGet();
             }
           }
-          tile.unlock();
-        } catch (IOException e) {
-          // TODO Auto-generated catch block
-          tiles.get(k).unlock();
-          e.printStackTrace();
+          finally
+          {
+            tile.unlock_read();
+          }
+        }
+      }).join();
+    }
+    catch(CompletionException e)
+    {
+      throw VolumeIOException.fromMessage(e.getCause().getMessage());
+    }
+    return new ScrubReport(replicas.get(), unverified.get(), bytes.get(), System.nanoTime()-start, corrupt);
+  }
+  
+  // ATOMIC and JOURNAL force every tile they write, and JOURNAL its journal twice per write, so small writes pay
+  // the device's flush latency each time; test/DurabilityBenchmark times the three on a given disk
+  public enum Durability
+  {
+    NONE,    // tiles are overwritten in place
+    ATOMIC,  // each tile is written aside, forced and renamed over its file
+    JOURNAL  // every write of a region is all or nothing, through a journal next to the header; asynchronous
+             // writes, ingest, map_tiles and write back flushes write their tiles as ATOMIC does
+  }
+  
+  public synchronized void set_durability(Durability durability) throws VolumeIOException
+  {
+    if(durability!=Durability.NONE&&(layout!=Layout.FILES||remote))
+    {
+      throw VolumeIOException.fromMessage("atomic and journaled writes need layout=files and local directories");
+    }
+    if(durability==Durability.JOURNAL)
+    {
+      synchronized(write_back)
+      {
+        if(write_back.limit>0)
+        {
+          throw VolumeIOException.fromMessage("journaled writes go straight to the tiles, turn write back off first");
+        }
+      }
+    }
+    this.durability = durability;
+  }
+  
+  public Durability get_durability()
+  {
+    return durability;
+  }
+  
+  public float[][][] read_data_local_coords(int or1,int or2,int or3,int nr1,int nr2,int nr3) throws VolumeIOException
+  {
+    check_region(or1,or2,or3,nr1,nr2,nr3);
+    float[][][] output_buf = new float[nr1][nr2][nr3];
+    read_region(new ArrayRegion(or1,or2,or3,output_buf));
+    return output_buf;
+  }
+  
+  // out[offset+x1*s1+x2*s2+x3] receives sample (or1+x1,or2+x2,or3+x3), rows along axis 3 are contiguous
+  public void read_data_local_coords(int or1,int or2,int or3,int nr1,int nr2,int nr3,float[] out,int offset,int s1,int s2) throws VolumeIOException
+  {
+    check_region(or1,or2,or3,nr1,nr2,nr3);
+    check_strides(out.length,offset,s1,s2,nr1,nr2,nr3);
+    read_region(new FlatRegion(or1,or2,or3,nr1,nr2,nr3,out,offset,s1,s2));
+  }
+  
+  public void read_data_local_coords(int or1,int or2,int or3,int nr1,int nr2,int nr3,FloatBuffer out,int offset,int s1,int s2) throws VolumeIOException
+  {
+    check_region(or1,or2,or3,nr1,nr2,nr3);
+    check_strides(out.limit(),offset,s1,s2,nr1,nr2,nr3);
+    read_region(new BufferRegion(or1,or2,or3,nr1,nr2,nr3,out,offset,s1,s2));
+  }
+  
+  public float[][][] read_data() throws VolumeIOException
+  {
+    float[][][] output_buf = new float[n1][n2][n3];
+    read_region(new ArrayRegion(0,0,0,output_buf));
+    return output_buf;
+  }
+  
+  // axis 1 returns [n2][n3] at x1=index, axis 2 returns [n1][n3] at x2=index, axis 3 returns [n1][n2] at x3=index;
+  // only the runs of each tile that hold the plane are read
+  public float[][] read_slice(final int axis,final int index) throws VolumeIOException
+  {
+    if(axis<1||axis>3)
+    {
+      throw VolumeIOException.fromMessage("axis should be 1, 2 or 3");
+    }
+    int n = axis==1 ? n1 : axis==2 ? n2 : n3;
+    if(index<0||index>=n)
+    {
+      throw VolumeIOException.fromMessage("index outside of [0,"+n+")");
+    }
+    final float[][] out = axis==1 ? new float[n2][n3] : axis==2 ? new float[n1][n3] : new float[n1][n2];
+    List<Tile> tiles = axis==1 ? get_tiles(index,0,0,1,n2,n3) : axis==2 ? get_tiles(0,index,0,n1,1,n3) : get_tiles(0,0,index,n1,n2,1);
+    try
+    {
+      submit_tiles(tiles, new TileTask()
+      {
+        @Override
+        public void run(Tile tile) throws IOException
+        {
+          read_slice_tile(tile, axis, index, out);
+        }
+      }).join();
+    }
+    catch(CompletionException e)
+    {
+      throw VolumeIOException.fromMessage(e.getCause().getMessage());
+    }
+    return out;
+  }
+  
+  // traces[k] holds all of axis 3 at (i1s[k],i2s[k]); each tile is opened once for all the requested traces it holds
+  public float[][] read_traces(int[] i1s,int[] i2s) throws VolumeIOException
+  {
+    if(i1s.length!=i2s.length)
+    {
+      throw VolumeIOException.fromMessage("read traces : i1s and i2s differ in length");
+    }
+    final int f2 = filenames[0].length;
+    final float[][] traces = new float[i1s.length][n3];
+    final Map<Integer,List<Integer>> columns = new HashMap<Integer,List<Integer>>();
+    for(int k=0;k<i1s.length;k++)
+    {
+      if(i1s[k]<0||i1s[k]>=n1||i2s[k]<0||i2s[k]>=n2)
+      {
+        throw VolumeIOException.fromMessage("trace outside of range:"+i1s[k]+" ["+0+","+n1+"); "+i2s[k]+" ["+0+","+n2+"); ");
+      }
+      int column = (i1s[k]/p1)*f2+i2s[k]/p2;
+      List<Integer> requests = columns.get(column);
+      if(requests==null)
+      {
+        requests = new ArrayList<Integer>();
+        columns.put(column, requests);
+      }
+      requests.add(k);
+    }
+    // starts[c][j] is the offset of the j-th trace of column c inside each of its tiles, ascending
+    final Map<Integer,int[]> starts = new HashMap<Integer,int[]>();
+    final Map<Integer,int[]> order = new HashMap<Integer,int[]>();
+    List<Tile> tiles = new ArrayList<Tile>();
+    for(Map.Entry<Integer,List<Integer>> entry : columns.entrySet())
+    {
+      List<Integer> requests = entry.getValue();
+      int t1 = entry.getKey()/f2;
+      int t2 = entry.getKey()%f2;
+      long[] sorted = new long[requests.size()];
+      for(int j=0;j<sorted.length;j++)
+      {
+        int k = requests.get(j);
+        sorted[j] = ((long)(((i1s[k]-t1*p1)*p2+(i2s[k]-t2*p2))*p3)<<32)|k;
+      }
+      Arrays.sort(sorted);
+      int[] s = new int[sorted.length];
+      int[] o = new int[sorted.length];
+      for(int j=0;j<sorted.length;j++)
+      {
+        s[j] = (int)(sorted[j]>>>32);
+        o[j] = (int)sorted[j];
+      }
+      starts.put(entry.getKey(), s);
+      order.put(entry.getKey(), o);
+      for(int t3=0;t3<filenames[0][0].length;t3++)
+      {
+        tiles.add(new Tile(t1*p1,t2*p2,t3*p3,filenames[t1][t2][t3]));
+      }
+    }
+    try
+    {
+      submit_tiles(tiles, new TileTask()
+      {
+        @Override
+        public void run(Tile tile) throws IOException
+        {
+          int column = (tile.o1/p1)*f2+tile.o2/p2;
+          int[] s = starts.get(column);
+          int[] o = order.get(column);
+          int nr3 = Math.min(p3,n3-tile.o3);
+          float[] runs = new float[s.length*nr3];
+          read_tile_runs(tile, s, nr3, runs);
+          for(int j=0;j<o.length;j++)
+          {
+            System.arraycopy(runs, j*nr3, traces[o[j]], tile.o3, nr3);
+          }
+        }
+      }).join();
+    }
+    catch(CompletionException e)
+    {
+      throw VolumeIOException.fromMessage(e.getCause().getMessage());
+    }
+    return traces;
+  }
+  
+  private void read_slice_tile(Tile tile,int axis,int index,float[][] out) throws IOException
+  {
+    int nr1 = Math.min(p1,n1-tile.o1);
+    int nr2 = Math.min(p2,n2-tile.o2);
+    int nr3 = Math.min(p3,n3-tile.o3);
+    if(axis==1)
+    {
+      // nr2 rows along axis 3, p3 apart
+      float[] runs = new float[nr2*nr3];
+      read_tile_runs(tile, (index-tile.o1)*p2*p3, nr3, p3, nr2, runs);
+      for(int i2=0;i2<nr2;i2++)
+      {
+        System.arraycopy(runs, i2*nr3, out[tile.o2+i2], tile.o3, nr3);
+      }
+    }
+    else if(axis==2)
+    {
+      // nr1 rows along axis 3, p2*p3 apart
+      float[] runs = new float[nr1*nr3];
+      read_tile_runs(tile, (index-tile.o2)*p3, nr3, p2*p3, nr1, runs);
+      for(int i1=0;i1<nr1;i1++)
+      {
+        System.arraycopy(runs, i1*nr3, out[tile.o1+i1], tile.o3, nr3);
+      }
+    }
+    else
+    {
+      // single samples p3 apart, the samples of rows clipped along axis 2 are read and dropped
+      int count = (nr1-1)*p2+nr2;
+      float[] runs = new float[count];
+      read_tile_runs(tile, index-tile.o3, 1, p3, count, runs);
+      for(int i1=0;i1<nr1;i1++)
+      {
+        for(int i2=0;i2<nr2;i2++)
+        {
+          out[tile.o1+i1][tile.o2+i2] = runs[i1*p2+i2];
+        }
+      }
+    }
+  }
+  
+  public void write_data_local_coordinates(int or1,int or2,int or3,final float[][][] D) throws VolumeIOException
+  {
+    check_region(or1,or2,or3,D.length,D[0].length,D[0][0].length);
+    write_region(new ArrayRegion(or1,or2,or3,D));
+  }
+  
+  // in[offset+x1*s1+x2*s2+x3] holds sample (or1+x1,or2+x2,or3+x3), rows along axis 3 are contiguous
+  public void write_data_local_coordinates(int or1,int or2,int or3,int nr1,int nr2,int nr3,final float[] in,int offset,int s1,int s2) throws VolumeIOException
+  {
+    check_region(or1,or2,or3,nr1,nr2,nr3);
+    check_strides(in.length,offset,s1,s2,nr1,nr2,nr3);
+    write_region(new FlatRegion(or1,or2,or3,nr1,nr2,nr3,in,offset,s1,s2));
+  }
+  
+  public void write_data_local_coordinates(int or1,int or2,int or3,int nr1,int nr2,int nr3,final FloatBuffer in,int offset,int s1,int s2) throws VolumeIOException
+  {
+    check_region(or1,or2,or3,nr1,nr2,nr3);
+    check_strides(in.limit(),offset,s1,s2,nr1,nr2,nr3);
+    write_region(new BufferRegion(or1,or2,or3,nr1,nr2,nr3,in,offset,s1,s2));
+  }
+  
+  public void write_data(final float[][][] D,boolean remove_existing) throws VolumeIOException
+  {
+    if(D.length!=n1)
+    {
+      throw VolumeIOException.fromMessage("n1 mismatch");
+    }
+    if(D[0].length!=n2)
+    {
+      throw VolumeIOException.fromMessage("n2 mismatch");
+    }
+    if(D[0][0].length!=n3)
+    {
+      throw VolumeIOException.fromMessage("n3 mismatch");
+    }
+    if(remove_existing)
+    {
+      clean();
+    }
+    write_region(new ArrayRegion(0,0,0,D));
+  } 
+  
+  public CompletableFuture<float[][][]> read_region_async(int or1,int or2,int or3,int nr1,int nr2,int nr3) throws VolumeIOException
+  {
+    check_region(or1,or2,or3,nr1,nr2,nr3);
+    final float[][][] output_buf = new float[nr1][nr2][nr3];
+    final Region region = new ArrayRegion(or1,or2,or3,output_buf);
+    return submit_tiles(get_tiles(or1,or2,or3,nr1,nr2,nr3), new TileTask()
+    {
+      @Override
+      public void run(Tile tile) throws IOException
+      {
+        read_tile_into(region, tile);
+      }
+    }).thenApply(v -> output_buf);
+  }
+  
+  // hands every tile, clipped to the region, to the consumer as soon as it is read; the consumer runs on an I/O thread
+  public CompletableFuture<Void> read_region_async(final int or1,final int or2,final int or3,final int nr1,final int nr2,final int nr3,final Consumer<TileView> consumer) throws VolumeIOException
+  {
+    check_region(or1,or2,or3,nr1,nr2,nr3);
+    return submit_tiles(get_tiles(or1,or2,or3,nr1,nr2,nr3), new TileTask()
+    {
+      @Override
+      public void run(Tile tile) throws IOException
+      {
+        int lo1 = Math.max(tile.o1,or1), hi1 = Math.min(tile.o1+p1,or1+nr1);
+        int lo2 = Math.max(tile.o2,or2), hi2 = Math.min(tile.o2+p2,or2+nr2);
+        int lo3 = Math.max(tile.o3,or3), hi3 = Math.min(tile.o3+p3,or3+nr3);
+        TileView view = new TileView(lo1,lo2,lo3,hi1-lo1,hi2-lo2,hi3-lo3);
+        read_tile_into(view.region(), tile);
+        consumer.accept(view);
+      }
+    });
+  }
+  
+  public CompletableFuture<Void> write_region_async(int or1,int or2,int or3,final float[][][] D) throws VolumeIOException
+  {
+    check_region(or1,or2,or3,D.length,D[0].length,D[0][0].length);
+    final Region region = new ArrayRegion(or1,or2,or3,D);
+    return submit_tiles(get_tiles(or1,or2,or3,region.nr1,region.nr2,region.nr3), new TileTask()
+    {
+      @Override
+      public void run(Tile tile) throws IOException
+      {
+        write_tile_from(region, tile);
+      }
+    });
+  }
+  
+  private interface TileTask
+  {
+    void run(Tile tile) throws IOException;
+  }
+  
+  private CompletableFuture<Void> submit_tiles(List<Tile> tiles,final TileTask task)
+  {
+    IoScheduler scheduler = get_scheduler();
+    CompletableFuture<?>[] futures = new CompletableFuture<?>[tiles.size()];
+    for(int i=0;i<tiles.size();i++)
+    {
+      futures[i] = scheduler.submit(tiles.get(i), task);
+    }
+    return CompletableFuture.allOf(futures);
+  }
+  
+  // visits every tile of the volume in storage order, keeping at most read_ahead tiles in flight
+  public Iterator<TileView> tile_iterator(int read_ahead) throws VolumeIOException
+  {
+    if(read_ahead < 1)
+    {
+      throw VolumeIOException.fromMessage("read ahead < 1");
+    }
+    return new TileIterator(read_ahead);
+  }
+  
+  public Stream<TileView> tiles(int read_ahead) throws VolumeIOException
+  {
+    return StreamSupport.stream(Spliterators.spliteratorUnknownSize(tile_iterator(read_ahead), Spliterator.ORDERED|Spliterator.NONNULL), false);
+  }
+  
+  private class TileIterator implements Iterator<TileView>
+  {
+    private final List<Tile> tiles = get_tiles(0,0,0,n1,n2,n3);
+    
+    private final ArrayDeque<CompletableFuture<TileView>> pending = new ArrayDeque<CompletableFuture<TileView>>();
+    
+    private int next = 0;
+    
+    TileIterator(int read_ahead)
+    {
+      while(next<tiles.size()&&pending.size()<read_ahead)
+      {
+        pending.add(read_tile_view(tiles.get(next++)));
+      }
+    }
+    
+    @Override
+    public boolean hasNext()
+    {
+      return !pending.isEmpty();
+    }
+    
+    @Override
+    public TileView next()
+    {
+      if(pending.isEmpty())
+      {
+        throw new NoSuchElementException();
+      }
+      CompletableFuture<TileView> head = pending.poll();
+      if(next<tiles.size())
+      {
+        pending.add(read_tile_view(tiles.get(next++)));
+      }
+      try
+      {
+        return head.join();
+      }
+      catch(CompletionException e)
+      {
+        if(e.getCause() instanceof UncheckedIOException)
+        {
+          throw (UncheckedIOException)e.getCause();
+        }
+        throw e;
+      }
+    }
+  }
+  
+  private CompletableFuture<TileView> read_tile_view(Tile tile)
+  {
+    final TileView view = new TileView(tile.o1,tile.o2,tile.o3,Math.min(p1,n1-tile.o1),Math.min(p2,n2-tile.o2),Math.min(p3,n3-tile.o3));
+    return get_scheduler().submit(tile, new TileTask()
+    {
+      @Override
+      public void run(Tile tile) throws IOException
+      {
+        read_tile_into(view.region(), tile);
+      }
+    }).thenApply(v -> view);
+  }
+  
+  private TileView load_tile_view(Tile tile) throws IOException
+  {
+    TileView view = new TileView(tile.o1,tile.o2,tile.o3,Math.min(p1,n1-tile.o1),Math.min(p2,n2-tile.o2),Math.min(p3,n3-tile.o3));
+    read_tile_into(view.region(), tile);
+    return view;
+  }
+  
+  public interface FloatOperator
+  {
+    float apply(float value);
+  }
+  
+  // rewrites every sample in place, one tile at a time, without assembling the volume
+  public void map_tiles(final FloatOperator op) throws VolumeIOException
+  {
+    compute(new TileTask()
+    {
+      @Override
+      public void run(Tile tile) throws IOException
+      {
+        map_tile(tile, op);
+      }
+    });
+  }
+  
+  // the existing samples are the input, so the whole tile is loaded, mapped and written back under its write lock
+  private void map_tile(Tile tile,FloatOperator op) throws IOException
+  {
+    TileBuffers b = tile_buffers.get();
+    tile.lock_write();
+    try
+    {
+      if(write_back.is_enabled())
+      {
+        DirtyTile dirty = write_back.get(tile.key);
+        if(dirty==null)
+        {
+          dirty = new DirtyTile(tile);
+        }
+        materialize(dirty, b.rbuf);
+        for(int i=0;i<dirty.data.length;i++)
+        {
+          dirty.data[i] = op.apply(dirty.data[i]);
+        }
+        write_back.put(dirty);
+        tile_maps.invalidate(tile.filename);
+        tile_cache.invalidate(tile.key);
+        prefetcher.invalidate(tile.key);
+      }
+      else
+      {
+        load_tile(tile, b.arr, b.rbuf);
+        for(int i=0;i<b.arr.length;i++)
+        {
+          b.arr[i] = op.apply(b.arr[i]);
+        }
+        write_tile_file(tile, b.arr);
+      }
+    }
+    finally
+    {
+      tile.unlock_write();
+    }
+    if(lod_levels>0)
+    {
+      synchronized(stale_tiles)
+      {
+        stale_tiles.set(tile.key);
+      }
+    }
+    write_back.trim();
+  }
+  
+  // maps every tile to a partial result and combines the partials pairwise, no tile is held longer than its mapping
+  public <R> R reduce_tiles(final Function<TileView,R> mapper,final BinaryOperator<R> combiner) throws VolumeIOException
+  {
+    final List<Tile> tiles = get_tiles(0,0,0,n1,n2,n3);
+    try
+    {
+      return get_compute_pool().invoke(new ReduceTask<R>(tiles,0,tiles.size(),mapper,combiner));
+    }
+    catch(UncheckedIOException e)
+    {
+      throw VolumeIOException.fromMessage(e.getCause().getMessage());
+    }
+  }
+  
+  private void compute(TileTask task) throws VolumeIOException
+  {
+    compute(get_tiles(0,0,0,n1,n2,n3), task);
+  }
+  
+  private void compute(List<Tile> tiles,TileTask task) throws VolumeIOException
+  {
+    if(tiles.isEmpty())
+    {
+      return;
+    }
+    try
+    {
+      get_compute_pool().invoke(new ComputeTask(tiles,0,tiles.size(),task));
+    }
+    catch(UncheckedIOException e)
+    {
+      throw VolumeIOException.fromMessage(e.getCause().getMessage());
+    }
+  }
+  
+  // consecutive tiles live in different directories, so splitting the storage ordered list keeps every directory busy
+  private class ComputeTask extends RecursiveAction
+  {
+    private static final long serialVersionUID = 1L;
+    
+    private final List<Tile> tiles;
+    private final int lo,hi;
+    private final TileTask task;
+    
+    ComputeTask(List<Tile> tiles,int lo,int hi,TileTask task)
+    {
+      this.tiles = tiles;
+      this.lo = lo;
+      this.hi = hi;
+      this.task = task;
+    }
+    
+    @Override
+    protected void compute()
+    {
+      if(hi-lo==1)
+      {
+        try
+        {
+          task.run(tiles.get(lo));
+        }
+        catch(IOException e)
+        {
+          throw new UncheckedIOException(e);
+        }
+        return;
+      }
+      int mid = (lo+hi)>>>1;
+      invokeAll(new ComputeTask(tiles,lo,mid,task), new ComputeTask(tiles,mid,hi,task));
+    }
+  }
+  
+  private class ReduceTask<R> extends RecursiveTask<R>
+  {
+    private static final long serialVersionUID = 1L;
+    
+    private final List<Tile> tiles;
+    private final int lo,hi;
+    private final Function<TileView,R> mapper;
+    private final BinaryOperator<R> combiner;
+    
+    ReduceTask(List<Tile> tiles,int lo,int hi,Function<TileView,R> mapper,BinaryOperator<R> combiner)
+    {
+      this.tiles = tiles;
+      this.lo = lo;
+      this.hi = hi;
+      this.mapper = mapper;
+      this.combiner = combiner;
+    }
+    
+    @Override
+    protected R compute()
+    {
+      if(hi-lo==1)
+      {
+        try
+        {
+          return mapper.apply(load_tile_view(tiles.get(lo)));
+        }
+        catch(IOException e)
+        {
+          throw new UncheckedIOException(e);
+        }
+      }
+      int mid = (lo+hi)>>>1;
+      ReduceTask<R> left = new ReduceTask<R>(tiles,lo,mid,mapper,combiner);
+      left.fork();
+      R right = new ReduceTask<R>(tiles,mid,hi,mapper,combiner).compute();
+      return combiner.apply(left.join(), right);
+    }
+  }
+  
+  public class TileView
+  {
+    public final int o1,o2,o3;
+    public final int n1,n2,n3;
+    public final float[] data; // sample (o1+x1,o2+x2,o3+x3) is data[(x1*n2+x2)*n3+x3]
+    
+    TileView(int o1,int o2,int o3,int n1,int n2,int n3)
+    {
+      this.o1 = o1;
+      this.o2 = o2;
+      this.o3 = o3;
+      this.n1 = n1;
+      this.n2 = n2;
+      this.n3 = n3;
+      this.data = new float[n1*n2*n3];
+    }
+    
+    public float get(int x1,int x2,int x3)
+    {
+      return data[(x1*n2+x2)*n3+x3];
+    }
+    
+    Region region()
+    {
+      return new FlatRegion(o1,o2,o3,n1,n2,n3,data,0,n2*n3,n3);
+    }
+    
+    int index_of(int x1,int x2,int x3)
+    {
+      return ((x1-o1)*n2+(x2-o2))*n3+(x3-o3);
+    }
+  }
+  
+  // level l of the pyramid halves level l-1 along every axis by averaging 2x2x2 boxes;
+  // each level is a volume of its own with header _header+".lod"+l and prefix prefix+"lod"+l+"_" in the same directories
+  public void build_pyramid(int levels) throws VolumeIOException
+  {
+    if(levels<1)
+    {
+      throw VolumeIOException.fromMessage("levels < 1");
+    }
+    close_levels();
+    set_header_option("lod=", "lod="+levels);
+    DistributedFile[] pyramid = new DistributedFile[levels+1];
+    pyramid[0] = this;
+    List<String> options = new ArrayList<String>();
+    for(int i=1;i<dirs.size();i++)
+    {
+      options.add("dir="+dirs.get(i).line);
+    }
+    options.addAll(format_options());
+    for(int l=1;l<=levels;l++)
+    {
+      DistributedFile prev = pyramid[l-1];
+      pyramid[l] = new DistributedFile ( _header+".lod"+l
+                                       , o1 , o2 , o3
+                                       , (prev.n1+1)/2 , (prev.n2+1)/2 , (prev.n3+1)/2
+                                       , 2*prev.d1 , 2*prev.d2 , 2*prev.d3
+                                       , p1 , p2 , p3
+                                       , prefix+"lod"+l+"_"
+                                       , suffix
+                                       , dirs.get(0).line
+                                       , options.toArray(new String[0])
+                                       );
+    }
+    synchronized(levels_open)
+    {
+      for(int l=1;l<=levels;l++)
+      {
+        levels_open.put(l, pyramid[l]);
+      }
+    }
+    lod_levels = levels;
+    synchronized(stale_tiles)
+    {
+      stale_tiles.set(0, filenames.length*filenames[0].length*filenames[0][0].length);
+    }
+    update_pyramid();
+  }
+  
+  // recomputes the pyramid tiles above every base tile written since the last update
+  public void update_pyramid() throws VolumeIOException
+  {
+    BitSet written;
+    synchronized(stale_tiles)
+    {
+      written = (BitSet)stale_tiles.clone();
+      stale_tiles.clear();
+    }
+    try
+    {
+      BitSet stale = written;
+      for(int l=1;l<=lod_levels&&!stale.isEmpty();l++)
+      {
+        stale = get_level(l).downsample(get_level(l-1), stale);
+      }
+    }
+    catch(VolumeIOException e)
+    {
+      synchronized(stale_tiles)
+      {
+        stale_tiles.or(written);
+      }
+      throw e;
+    }
+  }
+  
+  public int get_lod_levels()
+  {
+    return lod_levels;
+  }
+  
+  // level 0 is this volume, level l has ceil(n/2^l) samples along each axis; callers should only read it
+  public DistributedFile get_lod(int level) throws VolumeIOException
+  {
+    if(level<0||level>lod_levels)
+    {
+      throw VolumeIOException.fromMessage("level outside of [0,"+lod_levels+"]");
+    }
+    if(level>0)
+    {
+      update_pyramid();
+    }
+    return get_level(level);
+  }
+  
+  // the region is given in the sample coordinates of the level
+  public float[][][] read_lod(int level,int or1,int or2,int or3,int nr1,int nr2,int nr3) throws VolumeIOException
+  {
+    return get_lod(level).read_data_local_coords(or1,or2,or3,nr1,nr2,nr3);
+  }
+  
+  private DistributedFile get_level(int level) throws VolumeIOException
+  {
+    if(level==0)
+    {
+      return this;
+    }
+    synchronized(levels_open)
+    {
+      DistributedFile lod = levels_open.get(level);
+      if(lod==null)
+      {
+        lod = new DistributedFile(_header+".lod"+level);
+        levels_open.put(level, lod);
+      }
+      return lod;
+    }
+  }
+  
+  private void close_levels() throws VolumeIOException
+  {
+    synchronized(levels_open)
+    {
+      for(DistributedFile lod : levels_open.values())
+      {
+        lod.close();
+      }
+      levels_open.clear();
+    }
+  }
+  
+  // refreshes the tiles of this level above the stale tiles of src and returns their keys
+  private BitSet downsample(final DistributedFile src,BitSet stale) throws VolumeIOException
+  {
+    int f1 = filenames.length;
+    int f2 = filenames[0].length;
+    int f3 = filenames[0][0].length;
+    int g2 = src.filenames[0].length;
+    int g3 = src.filenames[0][0].length;
+    BitSet next = new BitSet();
+    for(int k=stale.nextSetBit(0);k>=0;k=stale.nextSetBit(k+1))
+    {
+      int t1 = k/(g2*g3);
+      int t2 = (k/g3)%g2;
+      int t3 = k%g3;
+      // source samples [t*p,(t+1)*p) average into [t*p/2,((t+1)*p-1)/2]
+      for(int u1=t1*p1/2/p1;u1<=Math.min(((t1+1)*p1-1)/2/p1,f1-1);u1++)
+      {
+        for(int u2=t2*p2/2/p2;u2<=Math.min(((t2+1)*p2-1)/2/p2,f2-1);u2++)
+        {
+          for(int u3=t3*p3/2/p3;u3<=Math.min(((t3+1)*p3-1)/2/p3,f3-1);u3++)
+          {
+            next.set((u1*f2+u2)*f3+u3);
+          }
+        }
+      }
+    }
+    List<Tile> tiles = new ArrayList<Tile>();
+    for(int k=next.nextSetBit(0);k>=0;k=next.nextSetBit(k+1))
+    {
+      int u1 = k/(f2*f3);
+      int u2 = (k/f3)%f2;
+      int u3 = k%f3;
+      tiles.add(new Tile(u1*p1,u2*p2,u3*p3,filenames[u1][u2][u3]));
+    }
+    compute(tiles, new TileTask()
+    {
+      @Override
+      public void run(Tile tile) throws IOException
+      {
+        downsample_tile(src, tile);
+      }
+    });
+    return next;
+  }
+  
+  private void downsample_tile(DistributedFile src,Tile tile) throws IOException
+  {
+    int nr1 = Math.min(p1,n1-tile.o1);
+    int nr2 = Math.min(p2,n2-tile.o2);
+    int nr3 = Math.min(p3,n3-tile.o3);
+    int ns1 = Math.min(2*nr1,src.n1-2*tile.o1);
+    int ns2 = Math.min(2*nr2,src.n2-2*tile.o2);
+    int ns3 = Math.min(2*nr3,src.n3-2*tile.o3);
+    float[] in = new float[ns1*ns2*ns3];
+    Region source = src.new FlatRegion(2*tile.o1,2*tile.o2,2*tile.o3,ns1,ns2,ns3,in,0,ns2*ns3,ns3);
+    for(Tile t : src.get_tiles(source.or1,source.or2,source.or3,ns1,ns2,ns3))
+    {
+      src.read_tile_into(source, t);
+    }
+    float[] out = new float[nr1*nr2*nr3];
+    for(int i1=0;i1<nr1;i1++)
+    {
+      int e1 = Math.min(2*i1+2,ns1);
+      for(int i2=0;i2<nr2;i2++)
+      {
+        int e2 = Math.min(2*i2+2,ns2);
+        for(int i3=0;i3<nr3;i3++)
+        {
+          int e3 = Math.min(2*i3+2,ns3);
+          float sum = 0;
+          int count = 0;
+          for(int j1=2*i1;j1<e1;j1++)
+          {
+            for(int j2=2*i2;j2<e2;j2++)
+            {
+              for(int j3=2*i3;j3<e3;j3++)
+              {
+                sum += in[(j1*ns2+j2)*ns3+j3];
+                count++;
+              }
+            }
+          }
+          out[(i1*nr2+i2)*nr3+i3] = sum/count;
+        }
+      }
+    }
+    write_tile_from(new FlatRegion(tile.o1,tile.o2,tile.o3,nr1,nr2,nr3,out,0,nr2*nr3,nr3), tile);
+  }
+  
+  // header lines that a volume derived from this one has to share with it
+  private List<String> format_options()
+  {
+    List<String> options = new ArrayList<String>();
+    options.add("codec="+codec.name().toLowerCase());
+    options.add("truncate_bits="+truncate_bits);
+    options.add("layout="+layout.name().toLowerCase());
+    options.add("placement="+placement.name().toLowerCase());
+    options.add("replication="+replication);
+    options.add("checksum="+checksum.name().toLowerCase());
+    options.add("dir_tokens="+dir_tokens.name().toLowerCase());
+    if(weights!=null)
+    {
+      StringBuilder line = new StringBuilder("weights=");
+      for(int i=0;i<weights.length;i++)
+      {
+        line.append(i>0 ? " " : "").append(weights[i]);
+      }
+      options.add(line.toString());
+    }
+    return options;
+  }
+  
+  // replaces the header lines starting with key by line
+  private void set_header_option(String key,String line) throws VolumeIOException
+  {
+    try
+    {
+      List<String> lines = new ArrayList<String>();
+      for(String l : Files.readAllLines(Paths.get(_header)))
+      {
+        if(!l.startsWith(key))
+        {
+          lines.add(l);
+        }
+      }
+      lines.add(line);
+      Files.write(Paths.get(_header), lines);
+    }
+    catch(IOException e)
+    {
+      throw VolumeIOException.fromMessage(e.getMessage());
+    }
+  }
+  
+  public enum HaloEdge
+  {
+    ZERO,  // samples outside the volume are 0
+    CLAMP  // samples outside the volume repeat the nearest edge sample
+  }
+  
+  // the view starts halo samples before the tile origin and extends halo samples past the (volume clipped) tile
+  public TileView read_tile_with_halo(int t1,int t2,int t3,int halo,HaloEdge edge) throws VolumeIOException
+  {
+    check_halo(halo);
+    if(t1<0||t1>=filenames.length||t2<0||t2>=filenames[0].length||t3<0||t3>=filenames[0][0].length)
+    {
+      throw VolumeIOException.fromMessage("tile index outside of volume");
+    }
+    TileView view = halo_view(t1,t2,t3,halo);
+    int lo1 = Math.max(view.o1,0), hi1 = Math.min(view.o1+view.n1,n1);
+    int lo2 = Math.max(view.o2,0), hi2 = Math.min(view.o2+view.n2,n2);
+    int lo3 = Math.max(view.o3,0), hi3 = Math.min(view.o3+view.n3,n3);
+    read_region(new FlatRegion(lo1,lo2,lo3,hi1-lo1,hi2-lo2,hi3-lo3,view.data,view.index_of(lo1,lo2,lo3),view.n2*view.n3,view.n3));
+    fill_halo_edges(view, edge);
+    return view;
+  }
+  
+  // visits every tile with its halo; neighbouring tiles are kept while later tiles still need them, so each tile file is read once
+  public void sweep_with_halo(int halo,HaloEdge edge,Consumer<TileView> consumer) throws VolumeIOException
+  {
+    check_halo(halo);
+    int f1 = filenames.length;
+    int f2 = filenames[0].length;
+    int f3 = filenames[0][0].length;
+    int r1 = (halo+p1-1)/p1;
+    int r2 = (halo+p2-1)/p2;
+    int r3 = (halo+p3-1)/p3;
+    Map<Integer,TileView> window = new HashMap<Integer,TileView>();
+    for(int t1=0;t1<f1;t1++)
+    {
+      Iterator<Integer> it = window.keySet().iterator();
+      while(it.hasNext())
+      {
+        if(it.next()/(f2*f3)<t1-r1)
+        {
+          it.remove();
+        }
+      }
+      for(int t2=0;t2<f2;t2++)
+      {
+        for(int t3=0;t3<f3;t3++)
+        {
+          Map<Integer,CompletableFuture<TileView>> loads = new HashMap<Integer,CompletableFuture<TileView>>();
+          List<TileView> neighbours = new ArrayList<TileView>();
+          for(int i1=Math.max(t1-r1,0);i1<=Math.min(t1+r1,f1-1);i1++)
+          {
+            for(int i2=Math.max(t2-r2,0);i2<=Math.min(t2+r2,f2-1);i2++)
+            {
+              for(int i3=Math.max(t3-r3,0);i3<=Math.min(t3+r3,f3-1);i3++)
+              {
+                int key = (i1*f2+i2)*f3+i3;
+                TileView neighbour = window.get(key);
+                if(neighbour!=null)
+                {
+                  neighbours.add(neighbour);
+                }
+                else
+                {
+                  loads.put(key, read_tile_view(new Tile(i1*p1,i2*p2,i3*p3,filenames[i1][i2][i3])));
+                }
+              }
+            }
+          }
+          for(Map.Entry<Integer,CompletableFuture<TileView>> load:loads.entrySet())
+          {
+            try
+            {
+              TileView neighbour = load.getValue().join();
+              window.put(load.getKey(), neighbour);
+              neighbours.add(neighbour);
+            }
+            catch(CompletionException e)
+            {
+              throw VolumeIOException.fromMessage(e.getCause().getMessage());
+            }
+          }
+          TileView view = halo_view(t1,t2,t3,halo);
+          for(TileView neighbour:neighbours)
+          {
+            copy_overlap(neighbour, view);
+          }
+          fill_halo_edges(view, edge);
+          consumer.accept(view);
+        }
+      }
+    }
+  }
+  
+  private void check_halo(int halo) throws VolumeIOException
+  {
+    if(halo<0)
+    {
+      throw VolumeIOException.fromMessage("halo < 0");
+    }
+  }
+  
+  private TileView halo_view(int t1,int t2,int t3,int halo)
+  {
+    return new TileView(t1*p1-halo,t2*p2-halo,t3*p3-halo
+                       ,Math.min(p1,n1-t1*p1)+2*halo
+                       ,Math.min(p2,n2-t2*p2)+2*halo
+                       ,Math.min(p3,n3-t3*p3)+2*halo
+                       );
+  }
+  
+  private void copy_overlap(TileView src,TileView dst)
+  {
+    int lo1 = Math.max(src.o1,dst.o1), hi1 = Math.min(src.o1+src.n1,dst.o1+dst.n1);
+    int lo2 = Math.max(src.o2,dst.o2), hi2 = Math.min(src.o2+src.n2,dst.o2+dst.n2);
+    int lo3 = Math.max(src.o3,dst.o3), hi3 = Math.min(src.o3+src.n3,dst.o3+dst.n3);
+    for(int x1=lo1;x1<hi1;x1++)
+    {
+      for(int x2=lo2;x2<hi2;x2++)
+      {
+        if(lo3<hi3)
+        {
+          System.arraycopy(src.data, src.index_of(x1,x2,lo3), dst.data, dst.index_of(x1,x2,lo3), hi3-lo3);
+        }
+      }
+    }
+  }
+  
+  private void fill_halo_edges(TileView view,HaloEdge edge)
+  {
+    if(edge!=HaloEdge.CLAMP)
+    {
+      return;
+    }
+    for(int x1=view.o1;x1<view.o1+view.n1;x1++)
+    {
+      int c1 = Math.min(Math.max(x1,0),n1-1);
+      for(int x2=view.o2;x2<view.o2+view.n2;x2++)
+      {
+        int c2 = Math.min(Math.max(x2,0),n2-1);
+        for(int x3=view.o3;x3<view.o3+view.n3;x3++)
+        {
+          int c3 = Math.min(Math.max(x3,0),n3-1);
+          if(c1!=x1||c2!=x2||c3!=x3)
+          {
+            view.data[view.index_of(x1,x2,x3)] = view.data[view.index_of(c1,c2,c3)];
+          }
+        }
+      }
+    }
+  }
+  
+  private void check_strides(int length,int offset,int s1,int s2,int nr1,int nr2,int nr3) throws VolumeIOException
+  {
+    if(offset<0)
+    {
+      throw VolumeIOException.fromMessage("offset < 0");
+    }
+    if(s2<nr3)
+    {
+      throw VolumeIOException.fromMessage("s2 < nr3");
+    }
+    if(s1<0)
+    {
+      throw VolumeIOException.fromMessage("s1 < 0");
+    }
+    // planes that overlap would have concurrent tile tasks write the same samples
+    if(nr1>1&&s1<(long)(nr2-1)*s2+nr3)
+    {
+      throw VolumeIOException.fromMessage("s1 < (nr2-1)*s2+nr3");
+    }
+    if(offset+(long)(nr1-1)*s1+(long)(nr2-1)*s2+nr3>length)
+    {
+      throw VolumeIOException.fromMessage("buffer too small for region");
+    }
+  }
+  
+  private class Tile
+  {
+    int o1,o2,o3;
+    int key;
+    String filename;
+    ReadWriteLock lock;
+    Tile(int o1,int o2,int o3,String filename)
+    {
+      this.o1 = o1;
+      this.o2 = o2;
+      this.o3 = o3;
+      this.key = ((o1/p1)*filenames[0].length+o2/p2)*filenames[0][0].length+o3/p3;
+      this.filename = filename;
+      this.lock = tile_locks[key%tile_locks.length];
+    }
+    void lock_read()
+    {
+      lock.readLock().lock();
+    }
+    void unlock_read()
+    {
+      lock.readLock().unlock();
+    }
+    void lock_write()
+    {
+      lock.writeLock().lock();
+    }
+    void unlock_write()
+    {
+      lock.writeLock().unlock();
+    }
+  }
+  
+  private class TileBuffers
+  {
+    float [] arr;
+    
+    ByteBuffer rbuf;
+    
+    ByteBuffer buf;
+    
+    byte [] packed; // encoded tile bytes, grown on demand
+    
+    ByteBuffer planes; // byte planes of the float codec
+    
+    final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    
+    final Inflater inflater = new Inflater();
+    
+    final CRC32C crc = new CRC32C();
+    
+    TileBuffers()
+    {
+      arr = new float[p1*p2*p3];
+      
+      rbuf = ByteBuffer.allocate(Float.BYTES*arr.length);
+      
+      buf = ByteBuffer.allocate(Float.BYTES*arr.length);
+      
+      packed = new byte[0];
+    }
+    
+    ByteBuffer planes()
+    {
+      if(planes==null)
+      {
+        planes = ByteBuffer.allocate(buf.capacity());
+      }
+      return planes;
+    }
+    
+    byte[] packed(int length)
+    {
+      if(packed.length<length)
+      {
+        packed = new byte[length];
+      }
+      return packed;
+    }
+    
+    ByteBuffer aligned; // direct and starting on a block boundary, for O_DIRECT writes
+    
+    ByteBuffer aligned(int length,int block)
+    {
+      if(aligned==null||aligned.capacity()<length||aligned.alignmentOffset(0, block)!=0)
+      {
+        aligned = ByteBuffer.allocateDirect(length+block).alignedSlice(block);
+      }
+      aligned.clear();
+      return aligned;
+    }
+  }
+  
+  private abstract class Region
+  {
+    final int or1,or2,or3;
+    final int nr1,nr2,nr3;
+    
+    Region(int or1,int or2,int or3,int nr1,int nr2,int nr3)
+    {
+      this.or1 = or1;
+      this.or2 = or2;
+      this.or3 = or3;
+      this.nr1 = nr1;
+      this.nr2 = nr2;
+      this.nr3 = nr3;
+    }
+    
+    // copies len samples from src into the row (x1,x2) of the region, starting at x3
+    abstract void put(int x1,int x2,int x3,FloatBuffer src,int len);
+    
+    // copies len samples of the row (x1,x2) of the region, starting at x3, into dst
+    abstract void get(int x1,int x2,int x3,float[] dst,int offset,int len);
+    
+    boolean covers(Tile tile)
+    {
+      return or1<=tile.o1 && tile.o1+p1<=or1+nr1
+          && or2<=tile.o2 && tile.o2+p2<=or2+nr2
+          && or3<=tile.o3 && tile.o3+p3<=or3+nr3;
+    }
+    
+    void read_from(Tile tile,FloatBuffer data)
+    {
+      int lo1 = Math.max(tile.o1,or1), hi1 = Math.min(tile.o1+p1,or1+nr1);
+      int lo2 = Math.max(tile.o2,or2), hi2 = Math.min(tile.o2+p2,or2+nr2);
+      int lo3 = Math.max(tile.o3,or3), hi3 = Math.min(tile.o3+p3,or3+nr3);
+      for(int x1=lo1;x1<hi1;x1++)
+      {
+        for(int x2=lo2;x2<hi2;x2++)
+        {
+          data.position(((x1-tile.o1)*p2+(x2-tile.o2))*p3+(lo3-tile.o3));
+          put(x1,x2,lo3,data,hi3-lo3);
+        }
+      }
+    }
+    
+    void mark(Tile tile,BitSet written)
+    {
+      int lo1 = Math.max(tile.o1,or1), hi1 = Math.min(tile.o1+p1,or1+nr1);
+      int lo2 = Math.max(tile.o2,or2), hi2 = Math.min(tile.o2+p2,or2+nr2);
+      int lo3 = Math.max(tile.o3,or3), hi3 = Math.min(tile.o3+p3,or3+nr3);
+      for(int x1=lo1;x1<hi1;x1++)
+      {
+        for(int x2=lo2;x2<hi2;x2++)
+        {
+          int i = ((x1-tile.o1)*p2+(x2-tile.o2))*p3+(lo3-tile.o3);
+          written.set(i, i+hi3-lo3);
+        }
+      }
+    }
+    
+    void write_to(Tile tile,float[] arr)
+    {
+      int lo1 = Math.max(tile.o1,or1), hi1 = Math.min(tile.o1+p1,or1+nr1);
+      int lo2 = Math.max(tile.o2,or2), hi2 = Math.min(tile.o2+p2,or2+nr2);
+      int lo3 = Math.max(tile.o3,or3), hi3 = Math.min(tile.o3+p3,or3+nr3);
+      for(int x1=lo1;x1<hi1;x1++)
+      {
+        for(int x2=lo2;x2<hi2;x2++)
+        {
+          get(x1,x2,lo3,arr,((x1-tile.o1)*p2+(x2-tile.o2))*p3+(lo3-tile.o3),hi3-lo3);
+        }
+      }
+    }
+  }
+  
+  private class ArrayRegion extends Region
+  {
+    final float[][][] data;
+    
+    ArrayRegion(int or1,int or2,int or3,float[][][] data)
+    {
+      super(or1,or2,or3,data.length,data[0].length,data[0][0].length);
+      this.data = data;
+    }
+    
+    @Override
+    void put(int x1,int x2,int x3,FloatBuffer src,int len)
+    {
+      src.get(data[x1-or1][x2-or2], x3-or3, len);
+    }
+    
+    @Override
+    void get(int x1,int x2,int x3,float[] dst,int offset,int len)
+    {
+      System.arraycopy(data[x1-or1][x2-or2], x3-or3, dst, offset, len);
+    }
+  }
+  
+  private class FlatRegion extends Region
+  {
+    final float[] data;
+    final int offset,s1,s2;
+    
+    FlatRegion(int or1,int or2,int or3,int nr1,int nr2,int nr3,float[] data,int offset,int s1,int s2)
+    {
+      super(or1,or2,or3,nr1,nr2,nr3);
+      this.data = data;
+      this.offset = offset;
+      this.s1 = s1;
+      this.s2 = s2;
+    }
+    
+    @Override
+    void put(int x1,int x2,int x3,FloatBuffer src,int len)
+    {
+      src.get(data, offset+(x1-or1)*s1+(x2-or2)*s2+(x3-or3), len);
+    }
+    
+    @Override
+    void get(int x1,int x2,int x3,float[] dst,int offset,int len)
+    {
+      System.arraycopy(data, this.offset+(x1-or1)*s1+(x2-or2)*s2+(x3-or3), dst, offset, len);
+    }
+  }
+  
+  private class BufferRegion extends Region
+  {
+    final FloatBuffer data;
+    final int offset,s1,s2;
+    
+    BufferRegion(int or1,int or2,int or3,int nr1,int nr2,int nr3,FloatBuffer data,int offset,int s1,int s2)
+    {
+      super(or1,or2,or3,nr1,nr2,nr3);
+      this.data = data;
+      this.offset = offset;
+      this.s1 = s1;
+      this.s2 = s2;
+    }
+    
+    @Override
+    void put(int x1,int x2,int x3,FloatBuffer src,int len)
+    {
+      FloatBuffer dst = data.duplicate();
+      dst.position(offset+(x1-or1)*s1+(x2-or2)*s2+(x3-or3));
+      FloatBuffer run = src.duplicate();
+      run.limit(run.position()+len);
+      dst.put(run);
+    }
+    
+    @Override
+    void get(int x1,int x2,int x3,float[] dst,int offset,int len)
+    {
+      FloatBuffer src = data.duplicate();
+      src.position(this.offset+(x1-or1)*s1+(x2-or2)*s2+(x3-or3));
+      src.get(dst, offset, len);
+    }
+  }
+  
+  private void read_tile_into(Region region,Tile tile) throws IOException
+  {
+    tile.lock_read();
+    try
+    {
+      region.read_from(tile, read_tile(tile, tile_buffers.get().buf));
+    }
+    finally
+    {
+      tile.unlock_read();
+    }
+  }
+  
+  private void write_tile_from(Region region,Tile tile) throws IOException
+  {
+    float [] arr = tile_buffers.get().arr;
+    ByteBuffer rbuf = tile_buffers.get().rbuf;
+    tile.lock_write();
+    try
+    {
+      if(write_back.is_enabled())
+      {
+        DirtyTile dirty = write_back.get(tile.key);
+        if(dirty==null)
+        {
+          dirty = new DirtyTile(tile);
+        }
+        region.write_to(tile, dirty.data);
+        if(region.covers(tile))
+        {
+          dirty.written = null;
+        }
+        else if(dirty.written!=null)
+        {
+          region.mark(tile, dirty.written);
+        }
+        write_back.put(dirty);
+        tile_maps.invalidate(tile.filename);
+        tile_cache.invalidate(tile.key);
+        prefetcher.invalidate(tile.key);
+      }
+      else
+      {
+        merge_tile(region, tile, arr, rbuf);
+        write_tile_file(tile, arr);
+      }
+    }
+    finally
+    {
+      tile.unlock_write();
+    }
+    if(lod_levels>0)
+    {
+      // marked once the samples are in place, so an update that misses them finds the mark
+      synchronized(stale_tiles)
+      {
+        stale_tiles.set(tile.key);
+      }
+    }
+    write_back.trim();
+  }
+  
+  // arr receives the tile's existing samples where the region does not replace them, then the region's samples
+  private void merge_tile(Region region,Tile tile,float[] arr,ByteBuffer rbuf) throws IOException
+  {
+    if(!region.covers(tile))
+    {
+      load_tile(tile, arr, rbuf);
+    }
+    region.write_to(tile, arr);
+  }
+  
+  // arr receives the tile's samples, zeros for a tile never written
+  private void load_tile(Tile tile,float[] arr,ByteBuffer rbuf) throws IOException
+  {
+    float[] cached = tile_cache.get(tile.key);
+    if(cached!=null)
+    {
+      System.arraycopy(cached, 0, arr, 0, arr.length);
+    }
+    else if(tile_exists(tile))
+    {
+      read_tile_file(tile, rbuf).get(arr);
+    }
+    else
+    {
+      Arrays.fill(arr, 0);
+    }
+  }
+  
+  // callers hold the tile's write lock
+  private void write_tile_file(Tile tile,float[] arr) throws IOException
+  {
+    write_tile_file(tile, arr, null);
+  }
+  
+  // with staged, the tiles go next to their files and wait for the journal to rename them, their checksum
+  // records are added to staged for the journal to apply once it committed
+  private void write_tile_file(Tile tile,float[] arr,List<String> staged) throws IOException
+  {
+    TileBuffers b = tile_buffers.get();
+    ByteBuffer buf = b.buf;
+    buf.clear();
+    FloatBuffer fbuf = buf.asFloatBuffer();
+    if(truncate_bits>0)
+    {
+      int mask = -1<<truncate_bits;
+      for(int i=0;i<arr.length;i++)
+      {
+        fbuf.put(i, Float.intBitsToFloat(Float.floatToRawIntBits(arr[i])&mask));
+      }
+    }
+    else
+    {
+      fbuf.put(arr);
+    }
+    byte[] bytes = buf.array();
+    int length = bytes.length;
+    if(codec!=Codec.RAW)
+    {
+      if(codec==Codec.FLOAT)
+      {
+        shuffle(buf, b.planes());
+        bytes = b.planes().array();
+      }
+      length = deflate(b, bytes);
+      bytes = b.packed;
+    }
+    tile_maps.invalidate(tile.filename);
+    tile_cache.invalidate(tile.key);
+    prefetcher.invalidate(tile.key);
+    // taken from the encoded bytes while they are still in cache, the stored bytes are never read back for it
+    int crc = checksums==null ? 0 : crc32c(b, bytes, length);
+    for(int r=0;r<replication;r++)
+    {
+      int dir = tile_dir(tile.key, r);
+      int slot = tile_slots[tile.key*replication+r];
+      if(staged!=null)
+      {
+        ((FileStore)store).stage(tile, r, bytes, length);
+        if(checksums!=null)
+        {
+          synchronized(staged)
+          {
+            staged.add(dir+" "+slot+" "+crc+" "+length);
+          }
+        }
+      }
+      else
+      {
+        store.write(tile, r, bytes, length);
+        if(checksums!=null)
+        {
+          checksums[dir].put(slot, crc, length);
+        }
+      }
+    }
+  }
+  
+  private enum Codec
+  {
+    RAW,     // big-endian floats as they are
+    DEFLATE, // big-endian floats through deflate
+    FLOAT    // xor with the previous sample, bytes grouped by significance, then deflate
+  }
+  
+  // xor of each sample with its predecessor along x3, split into four byte planes;
+  // neighbouring samples share sign, exponent and leading mantissa bits so the high planes are mostly zeros
+  private void shuffle(ByteBuffer src,ByteBuffer dst)
+  {
+    byte[] out = dst.array();
+    int count = p1*p2*p3;
+    int prev = 0;
+    for(int i=0;i<count;i++)
+    {
+      int bits = src.getInt(4*i);
+      int v = i%p3==0 ? bits : bits^prev;
+      prev = bits;
+      out[i] = (byte)(v>>>24);
+      out[count+i] = (byte)(v>>>16);
+      out[2*count+i] = (byte)(v>>>8);
+      out[3*count+i] = (byte)v;
+    }
+  }
+  
+  private void unshuffle(ByteBuffer src,ByteBuffer dst)
+  {
+    byte[] in = src.array();
+    int count = p1*p2*p3;
+    int prev = 0;
+    for(int i=0;i<count;i++)
+    {
+      int v = ((in[i]&0xff)<<24)|((in[count+i]&0xff)<<16)|((in[2*count+i]&0xff)<<8)|(in[3*count+i]&0xff);
+      int bits = i%p3==0 ? v : v^prev;
+      prev = bits;
+      dst.putInt(4*i, bits);
+    }
+  }
+  
+  // compresses into b.packed and returns the compressed length
+  private int deflate(TileBuffers b,byte[] raw)
+  {
+    Deflater deflater = b.deflater;
+    deflater.reset();
+    deflater.setInput(raw);
+    deflater.finish();
+    byte[] out = b.packed(raw.length+raw.length/1000+64);
+    int length = 0;
+    while(!deflater.finished())
+    {
+      if(length==out.length)
+      {
+        out = Arrays.copyOf(out, 2*out.length);
+        b.packed = out;
+      }
+      length += deflater.deflate(out, length, out.length-length);
+    }
+    return length;
+  }
+  
+  private void inflate(TileBuffers b,byte[] packed,int length,byte[] raw) throws IOException
+  {
+    Inflater inflater = b.inflater;
+    inflater.reset();
+    inflater.setInput(packed, 0, length);
+    try
+    {
+      int n = 0;
+      while(n<raw.length&&!inflater.finished())
+      {
+        int k = inflater.inflate(raw, n, raw.length-n);
+        if(k==0&&(inflater.needsInput()||inflater.needsDictionary()))
+        {
+          break;
+        }
+        n += k;
+      }
+      if(n!=raw.length)
+      {
+        throw new IOException("truncated tile: "+n+" of "+raw.length+" bytes");
+      }
+    }
+    catch(DataFormatException e)
+    {
+      throw new IOException("corrupt tile: "+e.getMessage());
+    }
+  }
+  
+  public long get_stored_bytes() throws VolumeIOException
+  {
+    return store.stored_bytes();
+  }
+  
+  private enum Layout
+  {
+    FILES,    // one file per tile
+    CONTAINER // one container file and one offset index per directory
+  }
+  
+  // where the encoded bytes of each replica of a tile live, callers hold the tile's lock
+  private abstract class TileStore
+  {
+    abstract boolean exists(Tile tile,int replica) throws IOException;
+    
+    abstract int length(Tile tile,int replica) throws IOException;
+    
+    // reads up to length stored bytes of the tile into dst and returns how many were read
+    abstract int read(Tile tile,int replica,byte[] dst,int length) throws IOException;
+    
+    // fills dst from the stored bytes of the tile starting at position, stops early only at their end
+    abstract int read_range(Tile tile,int replica,ByteBuffer dst,long position) throws IOException;
+    
+    // fills dst with the ranges back to back, range i being lengths[i] bytes at positions[i]; returns the bytes
+    // read in all, fewer than asked only when a range runs past the end
+    int read_ranges(Tile tile,int replica,byte[] dst,long[] positions,int[] lengths) throws IOException
+    {
+      int read = 0;
+      for(int i=0,offset=0;i<positions.length;offset+=lengths[i++])
+      {
+        read += read_range(tile, replica, ByteBuffer.wrap(dst, offset, lengths[i]), positions[i]);
+      }
+      return read;
+    }
+    
+    abstract void write(Tile tile,int replica,byte[] src,int length) throws IOException;
+    
+    abstract void clean() throws VolumeIOException;
+    
+    abstract long stored_bytes() throws VolumeIOException;
+    
+    void close() throws VolumeIOException
+    {
+    }
+  }
+  
+  private class FileStore extends TileStore
+  {
+    // the first copy keeps the tile's filename, the others the same name in their own directory
+    String filename(Tile tile,int replica)
+    {
+      if(replica==0)
+      {
+        return tile.filename;
+      }
+      return directories.get(tile_dir(tile.key, replica))+"/"+prefix+tile.o1+"_"+tile.o2+"_"+tile.o3+suffix;
+    }
+    
+    TileServer.Client host(Tile tile,int replica)
+    {
+      return remote_hosts[tile_dir(tile.key, replica)];
+    }
+    
+    boolean exists(Tile tile,int replica) throws IOException
+    {
+      TileServer.Client host = host(tile, replica);
+      if(host!=null)
+      {
+        return host.length(filename(tile, replica))>=0;
+      }
+      return new File(filename(tile, replica)).exists();
+    }
+    
+    int length(Tile tile,int replica) throws IOException
+    {
+      TileServer.Client host = host(tile, replica);
+      if(host!=null)
+      {
+        return (int)Math.max(0, host.length(filename(tile, replica)));
+      }
+      return (int)new File(filename(tile, replica)).length();
+    }
+    
+    int read(Tile tile,int replica,byte[] dst,int length) throws IOException
+    {
+      TileServer.Client host = host(tile, replica);
+      if(host!=null)
+      {
+        return host.read(filename(tile, replica), 0, ByteBuffer.wrap(dst, 0, length));
+      }
+      FileInputStream in = new FileInputStream(filename(tile, replica));
+      int n = 0;
+      while(n<length)
+      {
+        int k = in.read(dst, n, length-n);
+        if(k<0)
+        {
+          break;
+        }
+        n += k;
+      }
+      in.close();
+      return n;
+    }
+    
+    int read_range(Tile tile,int replica,ByteBuffer dst,long position) throws IOException
+    {
+      TileServer.Client host = host(tile, replica);
+      if(host!=null)
+      {
+        return host.read(filename(tile, replica), position, dst);
+      }
+      FileChannel channel = FileChannel.open(Paths.get(filename(tile, replica)), StandardOpenOption.READ);
+      try
+      {
+        return read_fully(channel, dst, position);
+      }
+      finally
+      {
+        channel.close();
+      }
+    }
+    
+    // a remote tile's ranges are asked for in one pipelined batch, a local one's through one channel
+    @Override
+    int read_ranges(Tile tile,int replica,byte[] dst,long[] positions,int[] lengths) throws IOException
+    {
+      TileServer.Client host = host(tile, replica);
+      String filename = filename(tile, replica);
+      ByteBuffer[] dsts = new ByteBuffer[positions.length];
+      for(int i=0,offset=0;i<positions.length;offset+=lengths[i++])
+      {
+        dsts[i] = ByteBuffer.wrap(dst, offset, lengths[i]);
+      }
+      int read = 0;
+      if(host!=null)
+      {
+        String[] paths = new String[positions.length];
+        Arrays.fill(paths, filename);
+        for(int count : host.read(paths, positions, dsts))
+        {
+          if(count<0)
+          {
+            throw new NoSuchFileException(host.get_address()+": "+filename);
+          }
+          read += count;
+        }
+        return read;
+      }
+      FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ);
+      try
+      {
+        for(int i=0;i<positions.length;i++)
+        {
+          read += read_fully(channel, dsts[i], positions[i]);
+        }
+      }
+      finally
+      {
+        channel.close();
+      }
+      return read;
+    }
+    
+    void write(Tile tile,int replica,byte[] src,int length) throws IOException
+    {
+      TileServer.Client host = host(tile, replica);
+      if(host!=null)
+      {
+        host.write(filename(tile, replica), src, length);
+        return;
+      }
+      if(durability!=Durability.NONE)
+      {
+        // a crash leaves either the old tile or the new one, never a truncated one
+        Path temp = stage(tile, replica, src, length);
+        force(temp);
+        Files.move(temp, Paths.get(filename(tile, replica)), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return;
+      }
+      if(direct_io)
+      {
+        write_direct(filename(tile, replica), tile_dir(tile.key, replica), src, length);
+        return;
+      }
+      FileOutputStream out = new FileOutputStream(filename(tile, replica));
+      out.write(src, 0, length);
+      out.close();
+    }
+    
+    // writes the tile next to its file, without forcing it unless direct io does
+    Path stage(Tile tile,int replica,byte[] src,int length) throws IOException
+    {
+      Path temp = Paths.get(filename(tile, replica)+TEMP_SUFFIX);
+      if(direct_io)
+      {
+        write_direct(temp.toString(), tile_dir(tile.key, replica), src, length);
+        return temp;
+      }
+      FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+      try
+      {
+        write_fully(channel, ByteBuffer.wrap(src, 0, length));
+      }
+      finally
+      {
+        channel.close();
+      }
+      return temp;
+    }
+    
+    // O_DIRECT wants whole blocks from a block aligned buffer, so the tile is padded and cut back to its length
+    void write_direct(String filename,int dir,byte[] src,int length) throws IOException
+    {
+      Path path = Paths.get(filename);
+      FileChannel channel = null;
+      if(DIRECT_OPEN_OPTION!=null&&!direct_refused[dir])
+      {
+        try
+        {
+          channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, DIRECT_OPEN_OPTION);
+        }
+        catch(IOException|UnsupportedOperationException e)
+        {
+          // tmpfs and some network file systems refuse O_DIRECT, their directories stay on the fallback
+          direct_refused[dir] = true;
+        }
+      }
+      if(channel!=null)
+      {
+        try
+        {
+          int block = direct_block[dir];
+          int padded = (length+block-1)/block*block;
+          ByteBuffer buf = tile_buffers.get().aligned(padded, block);
+          buf.put(src, 0, length);
+          while(buf.position()<padded)
+          {
+            buf.put((byte)0);
+          }
+          buf.flip();
+          while(buf.hasRemaining())
+          {
+            channel.write(buf);
+          }
+          channel.truncate(length);
+        }
+        finally
+        {
+          channel.close();
+        }
+        direct_tiles.incrementAndGet();
+        return;
+      }
+      // java has no fadvise, forcing each tile out at least keeps dirty pages from piling up in the page cache
+      channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+      try
+      {
+        ByteBuffer buf = ByteBuffer.wrap(src, 0, length);
+        while(buf.hasRemaining())
+        {
+          channel.write(buf);
+        }
+        channel.force(false);
+      }
+      finally
+      {
+        channel.close();
+      }
+      forced_tiles.incrementAndGet();
+    }
+    
+    // files behind a tile server are collected and deleted in one pipelined batch per server
+    void clean() throws VolumeIOException
+    {
+      Map<TileServer.Client,List<String>> batches = new HashMap<TileServer.Client,List<String>>();
+      for(int i1=0,k=0;i1<filenames.length;i1++)
+      {
+        for(int i2=0;i2<filenames[0].length;i2++)
+        {
+          for(int i3=0;i3<filenames[0][0].length;i3++,k++)
+          {
+            //System.out.println("deleting:"+filenames[i1][i2][i3]);
+            Tile tile = new Tile(i1*p1,i2*p2,i3*p3,filenames[i1][i2][i3]);
+            tile.lock_write();
+            for(int r=0;r<replication;r++)
+            {
+              TileServer.Client host = host(tile, r);
+              if(host!=null)
+              {
+                batches.computeIfAbsent(host, h -> new ArrayList<String>()).add(filename(tile, r));
+                continue;
+              }
+              File f = new File(filename(tile, r));
+              if(f.exists())
+              {
+                boolean bool = f.delete();
+                if(bool)
+                {
+                  //System.out.println("file deleted:"+filenames[i1][i2][i3]);
+                }
+              }
+              else
+              {
+                //throw new IOException("file to be deleted "+filenames[i1][i2][i3]+" does not exist.");
+              }
+            }
+            tile.unlock_write();
+          }
+        }
+      }
+      try
+      {
+        for(Map.Entry<TileServer.Client,List<String>> batch : batches.entrySet())
+        {
+          batch.getKey().delete(batch.getValue().toArray(new String[0]));
+        }
+      }
+      catch(IOException e)
+      {
+        throw VolumeIOException.fromMessage(e.getMessage());
+      }
+    }
+    
+    long stored_bytes() throws VolumeIOException
+    {
+      Map<TileServer.Client,List<String>> batches = new HashMap<TileServer.Client,List<String>>();
+      long bytes = 0;
+      for(int i1=0;i1<filenames.length;i1++)
+      {
+        for(int i2=0;i2<filenames[i1].length;i2++)
+        {
+          for(int i3=0;i3<filenames[i1][i2].length;i3++)
+          {
+            Tile tile = new Tile(i1*p1,i2*p2,i3*p3,filenames[i1][i2][i3]);
+            for(int r=0;r<replication;r++)
+            {
+              TileServer.Client host = host(tile, r);
+              if(host!=null)
+              {
+                batches.computeIfAbsent(host, h -> new ArrayList<String>()).add(filename(tile, r));
+                continue;
+              }
+              bytes += new File(filename(tile, r)).length();
+            }
+          }
+        }
+      }
+      try
+      {
+        for(Map.Entry<TileServer.Client,List<String>> batch : batches.entrySet())
+        {
+          for(long length : batch.getKey().lengths(batch.getValue().toArray(new String[0])))
+          {
+            bytes += Math.max(0, length);
+          }
+        }
+      }
+      catch(IOException e)
+      {
+        throw VolumeIOException.fromMessage(e.getMessage());
+      }
+      return bytes;
+    }
+    
+    // idle connections are dropped, the clients reconnect when the volume is used again
+    void close()
+    {
+      for(TileServer.Client host : remote_hosts)
+      {
+        if(host!=null)
+        {
+          host.close();
+        }
+      }
+    }
+  }
+  
+  // a replica lives in the container of its directory, in the slot numbering the directory's replicas in storage order
+  private class ContainerStore extends TileStore
+  {
+    final Container[] containers;
+    
+    ContainerStore()
+    {
+      containers = new Container[directories.size()];
+      for(int i=0;i<containers.length;i++)
+      {
+        containers[i] = new Container(directories.get(i), directory_tiles[i]);
+      }
+    }
+    
+    Container container(Tile tile,int replica)
+    {
+      return containers[tile_dir(tile.key, replica)];
+    }
+    
+    int slot(Tile tile,int replica)
+    {
+      return tile_slots[tile.key*replication+replica];
+    }
+    
+    boolean exists(Tile tile,int replica) throws IOException
+    {
+      return container(tile, replica).length(slot(tile, replica))>0;
+    }
+    
+    int length(Tile tile,int replica) throws IOException
+    {
+      return container(tile, replica).length(slot(tile, replica));
+    }
+    
+    int read(Tile tile,int replica,byte[] dst,int length) throws IOException
+    {
+      return container(tile, replica).read(slot(tile, replica), dst, length);
+    }
+    
+    int read_range(Tile tile,int replica,ByteBuffer dst,long position) throws IOException
+    {
+      return container(tile, replica).read_range(slot(tile, replica), dst, position);
+    }
+    
+    void write(Tile tile,int replica,byte[] src,int length) throws IOException
+    {
+      container(tile, replica).write(slot(tile, replica), src, length);
+    }
+    
+    void clean() throws VolumeIOException
+    {
+      for(Container container : containers)
+      {
+        container.delete();
+      }
+    }
+    
+    long stored_bytes()
+    {
+      long bytes = 0;
+      for(Container container : containers)
+      {
+        bytes += new File(container.data_name).length()+new File(container.index_name).length();
+      }
+      return bytes;
+    }
+    
+    void close() throws VolumeIOException
+    {
+      for(Container container : containers)
+      {
+        container.close();
+      }
+    }
+  }
+  
+  private static final int INDEX_ENTRY_BYTES = 12; // offset long, length int; length 0 marks a tile never written
+  
+  private class Container
+  {
+    final String data_name;
+    
+    final String index_name;
+    
+    final int slots;
+    
+    private FileChannel data;
+    
+    private FileChannel index;
+    
+    private long[] offsets;
+    
+    private int[] lengths;
+    
+    private long end; // appends go here
+    
+    Container(String dir,int slots)
+    {
+      this.data_name = dir+"/"+prefix+"tiles"+suffix;
+      this.index_name = dir+"/"+prefix+"index"+suffix;
+      this.slots = slots;
+    }
+    
+    // channels stay open until close(), so a scan opens two files per directory
+    private synchronized void open() throws IOException
+    {
+      if(data!=null)
+      {
+        return;
+      }
+      index = FileChannel.open(Paths.get(index_name), StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+      data = FileChannel.open(Paths.get(data_name), StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+      ByteBuffer entries = ByteBuffer.allocate(INDEX_ENTRY_BYTES*slots);
+      read_fully(index, entries, 0);
+      offsets = new long[slots];
+      lengths = new int[slots];
+      for(int i=0;i<slots;i++)
+      {
+        offsets[i] = entries.getLong(INDEX_ENTRY_BYTES*i);
+        lengths[i] = entries.getInt(INDEX_ENTRY_BYTES*i+8);
+      }
+      end = data.size();
+    }
+    
+    synchronized int length(int slot) throws IOException
+    {
+      open();
+      return lengths[slot];
+    }
+    
+    int read(int slot,byte[] dst,int length) throws IOException
+    {
+      FileChannel channel;
+      long offset;
+      synchronized(this)
+      {
+        open();
+        if(lengths[slot]==0)
+        {
+          throw new IOException("tile "+slot+" of "+data_name+" was never written");
+        }
+        channel = data;
+        offset = offsets[slot];
+        length = Math.min(length, lengths[slot]);
+      }
+      return read_fully(channel, ByteBuffer.wrap(dst, 0, length), offset);
+    }
+    
+    int read_range(int slot,ByteBuffer dst,long position) throws IOException
+    {
+      FileChannel channel;
+      long offset;
+      synchronized(this)
+      {
+        open();
+        if(lengths[slot]==0)
+        {
+          throw new IOException("tile "+slot+" of "+data_name+" was never written");
+        }
+        channel = data;
+        offset = offsets[slot];
+        if(position+dst.remaining()>lengths[slot])
+        {
+          dst.limit(dst.position()+(int)Math.max(0, lengths[slot]-position));
+        }
+      }
+      return read_fully(channel, dst, offset+position);
+    }
+    
+    // a tile that still fits its old place is rewritten there, anything larger is appended
+    void write(int slot,byte[] src,int length) throws IOException
+    {
+      FileChannel channel;
+      long offset;
+      synchronized(this)
+      {
+        open();
+        channel = data;
+        if(lengths[slot]>=length)
+        {
+          offset = offsets[slot];
+        }
+        else
+        {
+          offset = end;
+          end += length;
+        }
+      }
+      ByteBuffer bytes = ByteBuffer.wrap(src, 0, length);
+      while(bytes.hasRemaining())
+      {
+        channel.write(bytes, offset+bytes.position());
+      }
+      ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY_BYTES);
+      entry.putLong(0, offset);
+      entry.putInt(8, length);
+      synchronized(this)
+      {
+        while(entry.hasRemaining())
+        {
+          index.write(entry, (long)INDEX_ENTRY_BYTES*slot+entry.position());
+        }
+        offsets[slot] = offset;
+        lengths[slot] = length;
+      }
+    }
+    
+    synchronized void close() throws VolumeIOException
+    {
+      try
+      {
+        if(data!=null)
+        {
+          data.close();
+          index.close();
+        }
+      }
+      catch(IOException e)
+      {
+        throw VolumeIOException.fromMessage(e.getMessage());
+      }
+      finally
+      {
+        data = null;
+        index = null;
+      }
+    }
+    
+    synchronized void delete() throws VolumeIOException
+    {
+      close();
+      new File(data_name).delete();
+      new File(index_name).delete();
+    }
+  }
+  
+  private static void force(Path file) throws IOException
+  {
+    FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE);
+    try
+    {
+      channel.force(true);
+    }
+    finally
+    {
+      channel.close();
+    }
+  }
+  
+  // makes renames in the directory durable; file systems that cannot open a directory (windows) order them anyway
+  private static void force_directory(Path dir)
+  {
+    try
+    {
+      FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ);
+      try
+      {
+        channel.force(true);
+      }
+      finally
+      {
+        channel.close();
+      }
+    }
+    catch(IOException e)
+    {
+    }
+  }
+  
+  // positioned read that stops early only at the end of the channel
+  private static int read_fully(FileChannel channel,ByteBuffer dst,long position) throws IOException
+  {
+    int start = dst.position();
+    while(dst.hasRemaining())
+    {
+      int k = channel.read(dst, position+dst.position()-start);
+      if(k<0)
+      {
+        break;
+      }
+    }
+    return dst.position()-start;
+  }
+  
+  private static void write_fully(FileChannel channel,ByteBuffer src) throws IOException
+  {
+    while(src.hasRemaining())
+    {
+      channel.write(src);
+    }
+  }
+  
+  private class DirtyTile
+  {
+    final Tile tile;
+    final float[] data;
+    BitSet written; // samples of data that hold buffered writes, null once every sample does
+    
+    DirtyTile(Tile tile)
+    {
+      this.tile = tile;
+      this.data = new float[p1*p2*p3];
+      this.written = new BitSet(data.length);
+    }
+  }
+  
+  // fills the samples that were never written from the tile on disk
+  private void materialize(DirtyTile dirty,ByteBuffer buf) throws IOException
+  {
+    synchronized(dirty)
+    {
+      if(dirty.written==null)
+      {
+        return;
+      }
+      if(tile_exists(dirty.tile))
+      {
+        FloatBuffer base = read_tile_file(dirty.tile, buf);
+        for(int i=dirty.written.nextClearBit(0);i<dirty.data.length;)
+        {
+          int end = dirty.written.nextSetBit(i);
+          if(end<0)
+          {
+            end = dirty.data.length;
+          }
+          base.position(i);
+          base.get(dirty.data, i, end-i);
+          i = dirty.written.nextClearBit(end);
+        }
+      }
+      dirty.written = null;
+    }
+  }
+  
+  private class WriteBack
+  {
+    // insertion ordered, so iteration starts at the tile that has been dirty the longest
+    private final LinkedHashMap<Integer,DirtyTile> tiles = new LinkedHashMap<Integer,DirtyTile>();
+    
+    private long limit = 0;
+    
+    private long dirty_bytes = 0;
+    
+    synchronized boolean is_enabled()
+    {
+      return limit>0;
+    }
+    
+    synchronized DirtyTile get(int key)
+    {
+      return tiles.get(key);
+    }
+    
+    synchronized void put(DirtyTile dirty)
+    {
+      if(tiles.put(dirty.tile.key, dirty)==null)
+      {
+        dirty_bytes += (long)Float.BYTES*dirty.data.length;
+      }
+    }
+    
+    synchronized List<Tile> dirty_tiles()
+    {
+      List<Tile> list = new ArrayList<Tile>();
+      for(DirtyTile dirty:tiles.values())
+      {
+        list.add(dirty.tile);
+      }
+      return list;
+    }
+    
+    synchronized Tile eldest_over_limit()
+    {
+      if(dirty_bytes<=limit||tiles.isEmpty())
+      {
+        return null;
+      }
+      return tiles.values().iterator().next().tile;
+    }
+    
+    synchronized void clear()
+    {
+      tiles.clear();
+      dirty_bytes = 0;
+    }
+    
+    // writes the tile out if it is still dirty; takes the tile's write lock, so callers must not hold any tile lock
+    void flush(Tile tile) throws IOException
+    {
+      tile.lock_write();
+      try
+      {
+        DirtyTile dirty = get(tile.key);
+        if(dirty==null)
+        {
+          return;
+        }
+        materialize(dirty, tile_buffers.get().rbuf);
+        write_tile_file(tile, dirty.data);
+        synchronized(this)
+        {
+          tiles.remove(tile.key);
+          dirty_bytes -= (long)Float.BYTES*dirty.data.length;
+        }
+      }
+      finally
+      {
+        tile.unlock_write();
+      }
+    }
+    
+    void trim() throws IOException
+    {
+      Tile tile;
+      while((tile = eldest_over_limit())!=null)
+      {
+        flush(tile);
+      }
+    }
+  }
+  
+  // buffers writes in memory, coalescing updates per tile, until flush(), close() or more than dirty_bytes_limit bytes are dirty; 0 writes through
+  public void set_write_back(long dirty_bytes_limit) throws VolumeIOException
+  {
+    if(dirty_bytes_limit < 0)
+    {
+      throw VolumeIOException.fromMessage("dirty bytes limit < 0");
+    }
+    if(dirty_bytes_limit>0&&durability==Durability.JOURNAL)
+    {
+      throw VolumeIOException.fromMessage("write back cannot be combined with journaled writes");
+    }
+    if(dirty_bytes_limit==0)
+    {
+      flush();
+    }
+    synchronized(write_back)
+    {
+      write_back.limit = dirty_bytes_limit;
+    }
+    try
+    {
+      write_back.trim();
+    }
+    catch(IOException e)
+    {
+      throw VolumeIOException.fromMessage(e.getMessage());
+    }
+  }
+  
+  public long get_dirty_bytes()
+  {
+    synchronized(write_back)
+    {
+      return write_back.dirty_bytes;
+    }
+  }
+  
+  public void flush() throws VolumeIOException
+  {
+    try
+    {
+      submit_tiles(write_back.dirty_tiles(), new TileTask()
+      {
+        @Override
+        public void run(Tile tile) throws IOException
+        {
+          write_back.flush(tile);
+        }
+      }).join();
+    }
+    catch(CompletionException e)
+    {
+      throw VolumeIOException.fromMessage(e.getCause().getMessage());
+    }
+  }
+  
+  // runs closer than this are fetched with one read that spans the gap
+  private static final int COALESCE_GAP_BYTES = 16*1024;
+  
+  // reads count runs of run samples, run i starting at sample start+i*stride of the tile, back to back into dst
+  private void read_tile_runs(Tile tile,int start,int run,int stride,int count,float[] dst) throws IOException
+  {
+    int[] starts = new int[count];
+    for(int i=0;i<count;i++)
+    {
+      starts[i] = start+i*stride;
+    }
+    read_tile_runs(tile, starts, run, dst);
+  }
+  
+  // reads a run of run samples at each of the ascending starts, back to back into dst
+  private void read_tile_runs(Tile tile,int[] starts,int run,float[] dst) throws IOException
+  {
+    tile.lock_read();
+    try
+    {
+      FloatBuffer whole = null;
+      if(memory_mapped||codec!=Codec.RAW||write_back.get(tile.key)!=null||tile_cache.contains(tile.key)||verify_all())
+      {
+        whole = read_tile(tile, tile_buffers.get().buf);
+      }
+      else
+      {
+        // a tile read ahead for a sweep serves the runs as well as the windows
+        float[] prefetched = prefetcher.get(tile.key);
+        if(prefetched!=null)
+        {
+          whole = FloatBuffer.wrap(prefetched);
+        }
+      }
+      if(whole!=null)
+      {
+        for(int i=0;i<starts.length;i++)
+        {
+          whole.position(starts[i]);
+          whole.get(dst, i*run, run);
+        }
+        return;
+      }
+      // the coalesced ranges are read in one go, back to back into buf; they do not overlap, so they fit
+      int[] firsts = new int[starts.length];
+      int ranges = 0;
+      for(int i=0;i<starts.length;i++)
+      {
+        if(i==0||(long)(starts[i]-starts[i-1]-run)*Float.BYTES>=COALESCE_GAP_BYTES)
+        {
+          firsts[ranges++] = i;
+        }
+      }
+      final long[] positions = new long[ranges];
+      final int[] lengths = new int[ranges];
+      int total = 0;
+      for(int g=0;g<ranges;g++)
+      {
+        int last = g+1<ranges ? firsts[g+1]-1 : starts.length-1;
+        positions[g] = (long)Float.BYTES*starts[firsts[g]];
+        lengths[g] = Float.BYTES*(starts[last]+run-starts[firsts[g]]);
+        total += lengths[g];
+      }
+      // buf is left cleared, the other users of it expect that
+      ByteBuffer buf = tile_buffers.get().buf;
+      FloatBuffer data = buf.clear().asFloatBuffer();
+      int read = read_replicated(tile, buf.array(), total, (r,d) -> store.read_ranges(tile, r, d, positions, lengths));
+      check_range(tile, read, total);
+      for(int g=0,offset=0;g<ranges;offset+=lengths[g++]/Float.BYTES)
+      {
+        int last = g+1<ranges ? firsts[g+1] : starts.length;
+        for(int k=firsts[g];k<last;k++)
+        {
+          data.position(offset+starts[k]-starts[firsts[g]]);
+          data.get(dst, k*run, run);
+        }
+      }
+    }
+    finally
+    {
+      tile.unlock_read();
+    }
+  }
+  
+  private interface ReplicaRead
+  {
+    // reads from the given replica into dst and returns the bytes read
+    int read(int replica,byte[] dst) throws IOException;
+  }
+  
+  // with replication the replica in the directory with the lowest observed latency is read first; when it has not
+  // answered within the hedge delay, or fails, the next best is read as well and the first good answer is kept
+  private int read_replicated(Tile tile,byte[] dst,int length,final ReplicaRead op) throws IOException
+  {
+    if(replication==1)
+    {
+      return op.read(0, dst);
+    }
+    final int key = tile.key;
+    final Integer[] order = replica_order(key);
+    // every attempt reads into its own buffer so a late loser cannot touch dst
+    ExecutorCompletionService<Integer> attempts = new ExecutorCompletionService<Integer>(get_hedge_pool());
+    final byte[][] answers = new byte[replication][];
+    final int[] counts = new int[replication];
+    int issued = 0;
+    int pending = 0;
+    IOException failure = null;
+    try
+    {
+      while(true)
+      {
+        if(pending==0||issued<replication&&failure!=null)
+        {
+          if(issued==replication)
+          {
+            throw failure;
+          }
+          final int replica = order[issued++];
+          final int dir = tile_dir(key, replica);
+          final int size = length;
+          // the first attempt goes to the directory the scheduler charged the request to, hedges and failovers
+          // are charged to the directories they hit
+          final IoScheduler scheduler = issued>1 ? this.scheduler : null;
+          attempts.submit(() ->
+          {
+            if(scheduler!=null)
+            {
+              scheduler.started(dir);
+            }
+            long start = System.nanoTime();
+            byte[] d = new byte[size];
+            try
+            {
+              counts[replica] = op.read(replica, d);
+              answers[replica] = d;
+            }
+            catch(IOException e)
+            {
+              record_latency(dir, Math.max(2*(System.nanoTime()-start), MIN_HEDGE_DELAY_NANOS));
+              throw e;
+            }
+            finally
+            {
+              if(scheduler!=null)
+              {
+                scheduler.finished(dir, System.nanoTime()-start);
+              }
+            }
+            record_latency(dir, System.nanoTime()-start);
+            return replica;
+          });
+          pending++;
+          failure = null;
+        }
+        Future<Integer> done = issued<replication ? attempts.poll(hedge_delay(tile_dir(key, order[issued-1])), TimeUnit.NANOSECONDS) : attempts.take();
+        if(done==null)
+        {
+          // the last replica issued is slow, hedge with the next one
+          failure = new IOException("hedge");
+          continue;
+        }
+        pending--;
+        try
+        {
+          int replica = done.get();
+          System.arraycopy(answers[replica], 0, dst, 0, length);
+          return counts[replica];
+        }
+        catch(ExecutionException e)
+        {
+          failure = e.getCause() instanceof IOException ? (IOException)e.getCause() : new IOException(e.getCause());
+        }
+      }
+    }
+    catch(InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException(e.getMessage());
+    }
+  }
+  
+  // replicas by the observed latency of their directories, lowest first
+  private Integer[] replica_order(final int key)
+  {
+    Integer[] order = new Integer[replication];
+    for(int r=0;r<replication;r++)
+    {
+      order[r] = r;
+    }
+    if(replication>1)
+    {
+      synchronized(replica_latency)
+      {
+        Arrays.sort(order, (a,b) -> Long.compare(replica_latency[tile_dir(key, a)], replica_latency[tile_dir(key, b)]));
+      }
+    }
+    return order;
+  }
+  
+  // the directory a request for the tile is charged to, the one its first read attempt goes to
+  private int request_dir(Tile tile)
+  {
+    return tile_dir(tile.key, replica_order(tile.key)[0]);
+  }
+  
+  // true when a replica holds the tile; as with reads, a replica that cannot be asked is passed over for the next
+  private boolean tile_exists(Tile tile) throws IOException
+  {
+    IOException failure = null;
+    for(int replica : replica_order(tile.key))
+    {
+      try
+      {
+        if(store.exists(tile, replica))
+        {
+          return true;
+        }
+      }
+      catch(IOException e)
+      {
+        failure = e;
+      }
+    }
+    if(failure!=null)
+    {
+      throw failure;
+    }
+    return false;
+  }
+  
+  private void check_range(Tile tile,int read,int length) throws IOException
+  {
+    if(read<length)
+    {
+      throw new IOException("tile "+tile.filename+" ended after "+read+" of "+length+" bytes");
+    }
+  }
+  
+  private FloatBuffer read_tile_file(Tile tile,ByteBuffer buf) throws IOException
+  {
+    if(codec==Codec.RAW)
+    {
+      final int length = buf.capacity();
+      read_replicated(tile, buf.array(), length, (r,d) ->
+      {
+        int n = store.read(tile, r, d, length);
+        check_range(tile, n, length);
+        verify(tile, r, d, n);
+        return n;
+      });
+      return buf.asFloatBuffer();
+    }
+    TileBuffers b = tile_buffers.get();
+    final byte[] packed = b.packed(buf.capacity()+buf.capacity()/1000+64);
+    int n = read_replicated(tile, packed, packed.length, (r,d) ->
+    {
+      int length = store.length(tile, r);
+      if(length>d.length)
+      {
+        throw new IOException("tile "+tile.filename+" holds "+length+" bytes, more than an encoded tile can");
+      }
+      int read = store.read(tile, r, d, length);
+      check_range(tile, read, length);
+      verify(tile, r, d, read);
+      return read;
+    });
+    if(codec==Codec.FLOAT)
+    {
+      ByteBuffer planes = b.planes();
+      inflate(b, packed, n, planes.array());
+      unshuffle(planes, buf);
+    }
+    else
+    {
+      inflate(b, packed, n, buf.array());
+    }
+    return buf.asFloatBuffer();
+  }
+  
+  private FloatBuffer read_tile(Tile tile,ByteBuffer buf) throws IOException
+  {
+    DirtyTile dirty = write_back.get(tile.key);
+    if(dirty!=null)
+    {
+      materialize(dirty, buf);
+      return FloatBuffer.wrap(dirty.data);
+    }
+    float[] cached = tile_cache.get(tile.key);
+    if(cached!=null)
+    {
+      return FloatBuffer.wrap(cached);
+    }
+    float[] prefetched = prefetcher.get(tile.key);
+    if(prefetched!=null)
+    {
+      return FloatBuffer.wrap(prefetched);
+    }
+    FloatBuffer data;
+    if(memory_mapped)
+    {
+      data = tile_maps.get(tile).asFloatBuffer();
+    }
+    else
+    {
+      data = read_tile_file(tile, buf);
+    }
+    if(tile_cache.is_enabled())
+    {
+      cached = new float[p1*p2*p3];
+      data.get(cached);
+      tile_cache.put(tile.key, cached);
+      return FloatBuffer.wrap(cached);
+    }
+    return data;
+  }
+  
+  private class TileCache
+  {
+    // access ordered, so iteration starts at the least recently used tile
+    private final LinkedHashMap<Integer,float[]> tiles = new LinkedHashMap<Integer,float[]>(16,0.75f,true);
+    
+    private long capacity = 0;
+    
+    private long bytes = 0;
+    
+    private long hits = 0;
+    
+    private long misses = 0;
+    
+    private long evictions = 0;
+    
+    synchronized boolean is_enabled()
+    {
+      return capacity>0;
+    }
+    
+    synchronized boolean contains(int key)
+    {
+      return tiles.containsKey(key);
+    }
+    
+    synchronized float[] get(int key)
+    {
+      if(capacity==0)
+      {
+        return null;
+      }
+      float[] data = tiles.get(key);
+      if(data!=null)
+      {
+        hits++;
+      }
+      else
+      {
+        misses++;
+      }
+      return data;
+    }
+    
+    synchronized void put(int key,float[] data)
+    {
+      if(capacity==0)
+      {
+        return;
+      }
+      float[] old = tiles.put(key, data);
+      if(old!=null)
+      {
+        bytes -= (long)Float.BYTES*old.length;
+      }
+      bytes += (long)Float.BYTES*data.length;
+      trim();
+    }
+    
+    synchronized void invalidate(int key)
+    {
+      float[] old = tiles.remove(key);
+      if(old!=null)
+      {
+        bytes -= (long)Float.BYTES*old.length;
+      }
+    }
+    
+    synchronized void clear()
+    {
+      tiles.clear();
+      bytes = 0;
+    }
+    
+    synchronized void set_capacity(long capacity)
+    {
+      this.capacity = capacity;
+      trim();
+    }
+    
+    private void trim()
+    {
+      Iterator<float[]> it = tiles.values().iterator();
+      while(bytes>capacity&&it.hasNext())
+      {
+        bytes -= (long)Float.BYTES*it.next().length;
+        it.remove();
+        evictions++;
+      }
+    }
+  }
+  
+  public void set_tile_cache_capacity(long bytes) throws VolumeIOException
+  {
+    if(bytes < 0)
+    {
+      throw VolumeIOException.fromMessage("tile cache capacity < 0");
+    }
+    tile_cache.set_capacity(bytes);
+  }
+  
+  public long get_tile_cache_capacity()
+  {
+    synchronized(tile_cache)
+    {
+      return tile_cache.capacity;
+    }
+  }
+  
+  public long get_tile_cache_bytes()
+  {
+    synchronized(tile_cache)
+    {
+      return tile_cache.bytes;
+    }
+  }
+  
+  public long get_tile_cache_hits()
+  {
+    synchronized(tile_cache)
+    {
+      return tile_cache.hits;
+    }
+  }
+  
+  public long get_tile_cache_misses()
+  {
+    synchronized(tile_cache)
+    {
+      return tile_cache.misses;
+    }
+  }
+  
+  public long get_tile_cache_evictions()
+  {
+    synchronized(tile_cache)
+    {
+      return tile_cache.evictions;
+    }
+  }
+  
+  private class Prefetched
+  {
+    final float[] data;
+    boolean used = false;
+    
+    Prefetched(float[] data)
+    {
+      this.data = data;
+    }
+  }
+  
+  // watches the windows read_region is asked for; once a window moved by the same step as the one before it,
+  // the tiles of the windows that step leads to are read ahead into a buffer of at most capacity tiles
+  private class Prefetcher
+  {
+    // insertion ordered, the oldest prefetch goes first
+    private final LinkedHashMap<Integer,Prefetched> tiles = new LinkedHashMap<Integer,Prefetched>();
+    
+    private final Set<Integer> pending = new HashSet<Integer>();
+    
+    private int capacity = 0; // tiles buffered or in flight, 0 disables prefetching
+    
+    private long generation = 0; // bumped by clear, reads issued before it are dropped
+    
+    private int[] last; // or1,or2,or3,nr1,nr2,nr3 of the previous window
+    
+    private int[] step; // how the previous window moved from the one before it
+    
+    private long issued = 0;
+    
+    private long hits = 0;
+    
+    private long misses = 0;
+    
+    private long wasted = 0;
+    
+    synchronized boolean is_enabled()
+    {
+      return capacity>0;
+    }
+    
+    synchronized float[] get(int key)
+    {
+      if(capacity==0)
+      {
+        return null;
+      }
+      Prefetched tile = tiles.get(key);
+      if(tile==null)
+      {
+        misses++;
+        return null;
+      }
+      hits++;
+      tile.used = true;
+      return tile.data;
+    }
+    
+    // records a window that was just read and returns the tiles to read ahead for the windows it predicts
+    synchronized List<Tile> observe(int or1,int or2,int or3,int nr1,int nr2,int nr3)
+    {
+      int[] window = {or1,or2,or3,nr1,nr2,nr3};
+      int[] moved = null;
+      if(last!=null&&last[3]==nr1&&last[4]==nr2&&last[5]==nr3&&(or1!=last[0]||or2!=last[1]||or3!=last[2]))
+      {
+        moved = new int[]{or1-last[0],or2-last[1],or3-last[2]};
+      }
+      boolean predictable = moved!=null&&Arrays.equals(moved, step);
+      last = window;
+      step = moved;
+      Set<Integer> wanted = new LinkedHashSet<Integer>();
+      List<Tile> fetch = new ArrayList<Tile>();
+      for(int k=1;predictable&&k<=MAX_PREFETCH_WINDOWS&&wanted.size()<capacity;k++)
+      {
+        int b1 = Math.max(or1+k*moved[0], 0);
+        int b2 = Math.max(or2+k*moved[1], 0);
+        int b3 = Math.max(or3+k*moved[2], 0);
+        int e1 = Math.min(or1+k*moved[0]+nr1, n1);
+        int e2 = Math.min(or2+k*moved[1]+nr2, n2);
+        int e3 = Math.min(or3+k*moved[2]+nr3, n3);
+        if(b1>=e1||b2>=e2||b3>=e3)
+        {
+          break;
+        }
+        for(Tile tile : get_tiles(b1,b2,b3,e1-b1,e2-b2,e3-b3))
+        {
+          if(wanted.size()==capacity)
+          {
+            break;
+          }
+          if(wanted.add(tile.key)&&!tiles.containsKey(tile.key)&&!pending.contains(tile.key))
+          {
+            fetch.add(tile);
+          }
+        }
+      }
+      // buffered tiles no window ahead needs any more
+      Iterator<Map.Entry<Integer,Prefetched>> it = tiles.entrySet().iterator();
+      while(it.hasNext())
+      {
+        Map.Entry<Integer,Prefetched> entry = it.next();
+        if(!wanted.contains(entry.getKey()))
+        {
+          if(!entry.getValue().used)
+          {
+            wasted++;
+          }
+          it.remove();
+        }
+      }
+      int room = Math.max(capacity-tiles.size()-pending.size(), 0);
+      if(fetch.size()>room)
+      {
+        fetch = new ArrayList<Tile>(fetch.subList(0, room));
+      }
+      for(Tile tile : fetch)
+      {
+        pending.add(tile.key);
+      }
+      issued += fetch.size();
+      return fetch;
+    }
+    
+    synchronized void done(int key,long generation,float[] data)
+    {
+      if(generation!=this.generation||!pending.remove(key)||data==null)
+      {
+        return;
+      }
+      tiles.put(key, new Prefetched(data));
+    }
+    
+    // callers hold the tile's write lock
+    synchronized void invalidate(int key)
+    {
+      tiles.remove(key);
+    }
+    
+    synchronized void clear()
+    {
+      tiles.clear();
+      pending.clear();
+      generation++;
+      last = null;
+      step = null;
+    }
+    
+    synchronized void set_capacity(int capacity)
+    {
+      this.capacity = capacity;
+      Iterator<Prefetched> it = tiles.values().iterator();
+      while(tiles.size()>capacity&&it.hasNext())
+      {
+        if(!it.next().used)
+        {
+          wasted++;
+        }
+        it.remove();
+      }
+      if(capacity==0)
+      {
+        clear();
+      }
+    }
+  }
+  
+  // tiles read ahead for windows that move by a constant step, 0 turns prefetching off
+  public void set_prefetch_capacity(int tiles) throws VolumeIOException
+  {
+    if(tiles < 0)
+    {
+      throw VolumeIOException.fromMessage("prefetch capacity < 0");
+    }
+    prefetcher.set_capacity(tiles);
+  }
+  
+  public int get_prefetch_capacity()
+  {
+    synchronized(prefetcher)
+    {
+      return prefetcher.capacity;
+    }
+  }
+  
+  public long get_prefetch_issued()
+  {
+    synchronized(prefetcher)
+    {
+      return prefetcher.issued;
+    }
+  }
+  
+  // tile reads served from prefetched tiles
+  public long get_prefetch_hits()
+  {
+    synchronized(prefetcher)
+    {
+      return prefetcher.hits;
+    }
+  }
+  
+  // tile reads that went to storage while prefetching was on
+  public long get_prefetch_misses()
+  {
+    synchronized(prefetcher)
+    {
+      return prefetcher.misses;
+    }
+  }
+  
+  // prefetched tiles dropped before any read used them
+  public long get_prefetch_wasted()
+  {
+    synchronized(prefetcher)
+    {
+      return prefetcher.wasted;
+    }
+  }
+  
+  public double get_prefetch_hit_rate()
+  {
+    synchronized(prefetcher)
+    {
+      long reads = prefetcher.hits+prefetcher.misses;
+      return reads==0 ? 0 : (double)prefetcher.hits/reads;
+    }
+  }
+  
+  private class TileMaps
+  {
+    // access ordered, so iteration starts at the least recently used mapping
+    private final LinkedHashMap<String,Mapping> maps = new LinkedHashMap<String,Mapping>(16,0.75f,true);
+    
+    private long mapped_bytes = 0;
+    
+    // readers only touch a mapping under its tile's read lock, so whoever holds the write lock may unmap it
+    private class Mapping
+    {
+      final MappedByteBuffer map;
+      final ReadWriteLock lock;
+      
+      Mapping(MappedByteBuffer map,ReadWriteLock lock)
+      {
+        this.map = map;
+        this.lock = lock;
+      }
+    }
+    
+    // callers hold the tile's lock
+    MappedByteBuffer get(Tile tile) throws IOException
+    {
+      String filename = tile.filename;
+      synchronized(this)
+      {
+        Mapping mapping = maps.get(filename);
+        if(mapping!=null)
+        {
+          return mapping.map;
+        }
+      }
+      MappedByteBuffer map;
+      long size = (long)Float.BYTES*p1*p2*p3;
+      FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ);
+      try
+      {
+        if(channel.size()<size)
+        {
+          throw new IOException("tile "+filename+" is shorter than "+size+" bytes");
+        }
+        map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+      }
+      finally
+      {
+        channel.close();
+      }
+      synchronized(this)
+      {
+        Mapping other = maps.get(filename);
+        if(other!=null)
+        {
+          return other.map;
+        }
+        maps.put(filename, new Mapping(map, tile.lock));
+        mapped_bytes += size;
+        trim();
+      }
+      return map;
+    }
+    
+    // callers hold the tile's write lock and are about to replace or delete its file, which windows refuses
+    // while the file is mapped
+    synchronized void invalidate(String filename)
+    {
+      Mapping mapping = maps.remove(filename);
+      if(mapping!=null)
+      {
+        mapped_bytes -= (long)Float.BYTES*p1*p2*p3;
+        unmap(mapping.map);
+      }
+    }
+    
+    // before the files go, e.g. in clean; each mapping waits for the readers of its tile
+    void clear()
+    {
+      List<Mapping> dropped;
+      synchronized(this)
+      {
+        dropped = new ArrayList<Mapping>(maps.values());
+        maps.clear();
+        mapped_bytes = 0;
+      }
+      for(Mapping mapping : dropped)
+      {
+        mapping.lock.writeLock().lock();
+        try
+        {
+          unmap(mapping.map);
+        }
+        finally
+        {
+          mapping.lock.writeLock().unlock();
+        }
+      }
+    }
+    
+    // a mapping whose tile is being read, by this very thread say, is left for the collector to release
+    synchronized void trim()
+    {
+      Iterator<Map.Entry<String,Mapping>> it = maps.entrySet().iterator();
+      while(mapped_bytes>mapped_bytes_budget&&maps.size()>1&&it.hasNext())
+      {
+        Mapping mapping = it.next().getValue();
+        it.remove();
+        mapped_bytes -= (long)Float.BYTES*p1*p2*p3;
+        if(mapping.lock.writeLock().tryLock())
+        {
+          try
+          {
+            unmap(mapping.map);
+          }
+          finally
+          {
+            mapping.lock.writeLock().unlock();
+          }
+        }
+      }
+    }
+    
+    synchronized long get_mapped_bytes()
+    {
+      return mapped_bytes;
+    }
+  }
+  
+  public void set_memory_mapped(boolean memory_mapped) throws VolumeIOException
+  {
+    if(memory_mapped && (codec!=Codec.RAW||layout!=Layout.FILES||remote))
+    {
+      throw VolumeIOException.fromMessage("memory mapped tiles need codec=raw, layout=files and local directories");
+    }
+    this.memory_mapped = memory_mapped;
+    if(!memory_mapped)
+    {
+      tile_maps.clear();
+    }
+  }
+  
+  public boolean is_memory_mapped()
+  {
+    return memory_mapped;
+  }
+  
+  // bulk writes bypass the page cache with O_DIRECT where the platform and file system allow it,
+  // elsewhere each tile is forced to disk as it is written; reads are unchanged. With atomic or journaled
+  // writes it is the staged copy that is written this way
+  public synchronized void set_direct_io(boolean direct_io) throws VolumeIOException
+  {
+    if(direct_io && layout!=Layout.FILES)
+    {
+      throw VolumeIOException.fromMessage("direct io needs layout=files");
+    }
+    if(direct_io && direct_block==null)
+    {
+      int[] blocks = new int[directories.size()];
+      for(int i=0;i<blocks.length;i++)
+      {
+        blocks[i] = DEFAULT_DIRECT_BLOCK;
+        try
+        {
+          long block = Files.getFileStore(Paths.get(directories.get(i))).getBlockSize();
+          if(block>0&&block<=MAX_DIRECT_BLOCK&&Long.bitCount(block)==1)
+          {
+            blocks[i] = (int)block;
+          }
+        }
+        catch(IOException|UnsupportedOperationException e)
+        {
+        }
+      }
+      direct_refused = new boolean[blocks.length];
+      direct_block = blocks;
+    }
+    this.direct_io = direct_io;
+  }
+  
+  public boolean is_direct_io()
+  {
+    return direct_io;
+  }
+  
+  // tiles written with O_DIRECT
+  public long get_direct_tiles()
+  {
+    return direct_tiles.get();
+  }
+  
+  // tiles written through the page cache and forced, where O_DIRECT was not available
+  public long get_forced_tiles()
+  {
+    return forced_tiles.get();
+  }
+  
+  // java has no public unmap, a mapping lasts until it is collected; sun.misc.Unsafe.invokeCleaner releases it at
+  // once where the runtime has it. Looked up like ExtendedOpenOption, without it the collector still releases it
+  private static void unmap(MappedByteBuffer map)
+  {
+    if(UNSAFE==null||INVOKE_CLEANER==null)
+    {
+      return;
+    }
+    try
+    {
+      INVOKE_CLEANER.invoke(UNSAFE, map);
+    }
+    catch(ReflectiveOperationException|IllegalArgumentException e)
+    {
+    }
+  }
+  
+  private static Object unsafe()
+  {
+    try
+    {
+      Field field = Class.forName("sun.misc.Unsafe").getDeclaredField("theUnsafe");
+      field.setAccessible(true);
+      return field.get(null);
+    }
+    catch(ReflectiveOperationException|RuntimeException e)
+    {
+      return null;
+    }
+  }
+  
+  private static Method invoke_cleaner()
+  {
+    try
+    {
+      return Class.forName("sun.misc.Unsafe").getMethod("invokeCleaner", ByteBuffer.class);
+    }
+    catch(ReflectiveOperationException e)
+    {
+      return null;
+    }
+  }
+  
+  // ExtendedOpenOption is a jdk extension, looked up so that other runtimes fall back instead of failing to load
+  private static OpenOption direct_open_option()
+  {
+    try
+    {
+      Class<?> type = Class.forName("com.sun.nio.file.ExtendedOpenOption");
+      for(Object option : type.getEnumConstants())
+      {
+        if(((Enum<?>)option).name().equals("DIRECT"))
+        {
+          return (OpenOption)option;
+        }
+      }
+    }
+    catch(ClassNotFoundException e)
+    {
+    }
+    return null;
+  }
+  
+  public void set_mapped_bytes_budget(long mapped_bytes_budget) throws VolumeIOException
+  {
+    if(mapped_bytes_budget < 0)
+    {
+      throw VolumeIOException.fromMessage("mapped bytes budget < 0");
+    }
+    this.mapped_bytes_budget = mapped_bytes_budget;
+    tile_maps.trim();
+  }
+  
+  public long get_mapped_bytes()
+  {
+    return tile_maps.get_mapped_bytes();
+  }
+  
+  private IoScheduler get_scheduler()
+  {
+    synchronized(pools_lock)
+    {
+      if(scheduler==null)
+      {
+        scheduler = new IoScheduler(get_executor());
+      }
+      return scheduler;
+    }
+  }
+  
+  private ExecutorService get_executor()
+  {
+    synchronized(pools_lock)
+    {
+      if(executor==null)
+      {
+        executor = Executors.newFixedThreadPool(get_io_threads(), new ThreadFactory()
+        {
+          private final AtomicInteger index = new AtomicInteger();
+          
+          @Override
+          public Thread newThread(Runnable r)
+          {
+            Thread thread = new Thread(r, String.format("Worker-%d", index.getAndIncrement()));
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+      }
+      return executor;
+    }
+  }
+  
+  // replica reads wait here rather than on the I/O threads, a slow attempt must not hold up the one hedging it
+  private ExecutorService get_hedge_pool()
+  {
+    synchronized(pools_lock)
+    {
+      if(hedge_pool==null)
+      {
+        hedge_pool = Executors.newCachedThreadPool(new ThreadFactory()
+        {
+          private final AtomicInteger index = new AtomicInteger();
+          
+          @Override
+          public Thread newThread(Runnable r)
+          {
+            Thread thread = new Thread(r, String.format("Hedge-%d", index.getAndIncrement()));
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+      }
+      return hedge_pool;
+    }
+  }
+  
+  // only ever runs tasks that take no tile locks
+  private ExecutorService get_journal_pool()
+  {
+    synchronized(pools_lock)
+    {
+      if(journal_pool==null)
+      {
+        journal_pool = Executors.newFixedThreadPool(get_io_threads(), new ThreadFactory()
+        {
+          private final AtomicInteger index = new AtomicInteger();
+          
+          @Override
+          public Thread newThread(Runnable r)
+          {
+            Thread thread = new Thread(r, String.format("Journal-%d", index.getAndIncrement()));
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+      }
+      return journal_pool;
+    }
+  }
+  
+  private ForkJoinPool get_compute_pool()
+  {
+    synchronized(pools_lock)
+    {
+      if(compute_pool==null)
+      {
+        compute_pool = new ForkJoinPool(get_io_threads());
+      }
+      return compute_pool;
+    }
+  }
+  
+  // a lone tile gains nothing from a hand-off and runs on the calling thread
+  private void run_tiles(List<Tile> tiles,TileTask task) throws VolumeIOException
+  {
+    if(tiles.size()==1)
+    {
+      try
+      {
+        task.run(tiles.get(0));
+      }
+      catch(IOException e)
+      {
+        throw VolumeIOException.fromMessage(e.getMessage());
+      }
+      return;
+    }
+    try
+    {
+      submit_tiles(tiles, task).join();
+    }
+    catch(CompletionException e)
+    {
+      throw VolumeIOException.fromMessage(e.getCause().getMessage());
+    }
+  }
+  
+  // like run_tiles, but on the journal pool and past the directory caps
+  private void run_staged(List<Tile> tiles,final TileTask task) throws VolumeIOException
+  {
+    if(tiles.size()==1)
+    {
+      run_tiles(tiles, task);
+      return;
+    }
+    ExecutorService pool = get_journal_pool();
+    CompletableFuture<?>[] futures = new CompletableFuture<?>[tiles.size()];
+    for(int i=0;i<tiles.size();i++)
+    {
+      final Tile tile = tiles.get(i);
+      futures[i] = CompletableFuture.runAsync(new Runnable()
+      {
+        @Override
+        public void run()
+        {
+          try
+          {
+            task.run(tile);
+          }
+          catch(IOException e)
+          {
+            throw new UncheckedIOException(e);
+          }
         }
+      }, pool);
+    }
+    try
+    {
+      CompletableFuture.allOf(futures).join();
+    }
+    catch(CompletionException e)
+    {
+      throw VolumeIOException.fromMessage(e.getCause().getMessage());
+    }
+  }
+  
+  public void set_threads_per_directory(int threads_per_directory) throws VolumeIOException
+  {
+    synchronized(pools_lock)
+    {
+      if(threads_per_directory < 1)
+      {
+        throw VolumeIOException.fromMessage("threads per directory < 1");
       }
-      tiles.clear();
-      }
+      this.threads_per_directory = threads_per_directory;
+      shutdown_pools();
+    }
   }
   
-  public class TileReadWorker extends DistributedFile.Worker
+  public int get_io_threads()
   {
-    
-    float [] arr;
-    
-    ByteBuffer rbuf;
-    
-    ByteBuffer buf;
-
-    public TileReadWorker(int index) {
-      super(index);
-      
-      buf = ByteBuffer.allocate(Float.BYTES*p1*p2*p3);
+    synchronized(pools_lock)
+    {
+      return directories.size()*threads_per_directory;
     }
-
-    @Override
-    public void run()
-      {
-      for(int k=0;k<tiles.size();k++)
-      {
-        try {
-          Tile tile = tiles.get(k);
-          tile.lock();
-          FileInputStream in = new FileInputStream(tile.filename);
-          in.read(buf.array());
-          in.close();
-          float max=0;
-          for(int x1=tile.o1-O1,i=0;x1<tile.o1-O1+p1;x1++)
-          {
-            for(int x2=tile.o2-O2;x2<tile.o2-O2+p2;x2++)
-            {
-              for(int x3=tile.o3-O3;x3<tile.o3-O3+p3;x3++,i++)
-              {
-                tmp_buf[x1][x2][x3] = buf.getFloat(4*i); 
-                max = Math.max(tmp_buf[x1][x2][x3], max);
-              }
-            }
-          }
-          //System.out.println(tile.filename+":"+max);
-          tile.unlock();
-        } catch (IOException e) {
-          // TODO Auto-generated catch block
-          tiles.get(k).unlock();
-          e.printStackTrace();
-        }
-      }
-      tiles.clear();
-      }
   }
-
-  public class TotalWriterWorker extends DistributedFile.Worker
+  
+  // a queue per directory; no directory has more than its cap of requests in flight, so a slow mount holds
+  // at most its cap of I/O threads, and a thread that frees up takes the next request of any directory below its cap
+  private class IoScheduler
   {
+    private final ExecutorService executor;
+    private final List<ArrayDeque<Request>> queues = new ArrayList<ArrayDeque<Request>>();
+    private final int[] caps;
+    private final int[] in_flight;
+    private final long[] completed;
+    private final long[] nanos;
+    private int next = 0; // directory the next dispatch scan starts at
     
-    float [] arr;
-    
-    ByteBuffer rbuf;
+    IoScheduler(ExecutorService executor)
+    {
+      this.executor = executor;
+      caps = new int[directories.size()];
+      in_flight = new int[caps.length];
+      completed = new long[caps.length];
+      nanos = new long[caps.length];
+      for(int h=0,dir=0;h<dirs.size();h++)
+      {
+        for(int i=0;i<dirs.get(h).size();i++,dir++)
+        {
+          caps[dir] = dirs.get(h).max_requests>0 ? dirs.get(h).max_requests : threads_per_directory;
+          queues.add(new ArrayDeque<Request>());
+        }
+      }
+    }
     
-    ByteBuffer buf;
-
-    public TotalWriterWorker(int index) {
-      super(index);
-
-      arr = new float[p1*p2*p3];
-      
-      buf = ByteBuffer.allocate(Float.BYTES*arr.length);
+    CompletableFuture<Void> submit(Tile tile,TileTask task)
+    {
+      Request request = new Request(request_dir(tile), tile, task);
+      synchronized(this)
+      {
+        queues.get(request.dir).add(request);
+      }
+      dispatch();
+      return request.done;
     }
-
-    @Override
-    public void run()
+    
+    private void dispatch()
+    {
+      List<Request> ready = new ArrayList<Request>();
+      synchronized(this)
       {
-      for(int k=0;k<tiles.size();k++)
+        for(int n=0;n<queues.size();n++)
+        {
+          int dir = (next+n)%queues.size();
+          ArrayDeque<Request> queue = queues.get(dir);
+          while(!queue.isEmpty()&&in_flight[dir]<caps[dir])
+          {
+            ready.add(queue.poll());
+            in_flight[dir]++;
+          }
+        }
+        next = (next+1)%queues.size();
+      }
+      for(Request request : ready)
       {
-        try {
-          Tile tile = tiles.get(k);
-          tile.lock();
-          for(int x1=tile.o1,i=0;x1<tile.o1+p1;x1++)
+        try
+        {
+          executor.execute(request);
+        }
+        catch(RejectedExecutionException e)
+        {
+          synchronized(this)
           {
-            for(int x2=tile.o2;x2<tile.o2+p2;x2++)
-            {
-              for(int x3=tile.o3;x3<tile.o3+p3;x3++,i++)
-              {
-                arr[i] = tmp_buf[x1][x2][x3]; 
-              }
-            }
+            in_flight[request.dir]--;
           }
-          buf.asFloatBuffer().put(arr);
-          FileOutputStream out = new FileOutputStream(tile.filename);
-          out.write(buf.array());
-          out.close();
-          tile.unlock();
-        } catch (IOException e) {
-          // TODO Auto-generated catch block
-          tiles.get(k).unlock();
-          e.printStackTrace();
+          request.done.completeExceptionally(e);
         }
       }
-      tiles.clear();
+    }
+    
+    // a replica read the scheduler did not dispatch, running past the cap like the request that issued it
+    private synchronized void started(int dir)
+    {
+      in_flight[dir]++;
+    }
+    
+    private void finished(int dir,long elapsed)
+    {
+      synchronized(this)
+      {
+        in_flight[dir]--;
+        completed[dir]++;
+        nanos[dir] += elapsed;
       }
-  }
-  
-  public class TileWriterWorker extends DistributedFile.Worker
-  {
+      dispatch();
+    }
     
-    float [] arr;
+    synchronized int queue_depth(int dir)
+    {
+      return queues.get(dir).size();
+    }
     
-    ByteBuffer rbuf;
+    synchronized int in_flight(int dir)
+    {
+      return in_flight[dir];
+    }
     
-    ByteBuffer buf;
-
-    public TileWriterWorker(int index) {
-      super(index);
-
-      arr = new float[p1*p2*p3];
-      
-      rbuf = ByteBuffer.allocate(Float.BYTES*arr.length);
-      
-      buf = ByteBuffer.allocate(Float.BYTES*arr.length);
+    synchronized long completed(int dir)
+    {
+      return completed[dir];
     }
-
-    @Override
-    public void run()
+    
+    synchronized long mean_latency_nanos(int dir)
+    {
+      return completed[dir]>0 ? nanos[dir]/completed[dir] : 0;
+    }
+    
+    private class Request implements Runnable
+    {
+      final int dir;
+      final Tile tile;
+      final TileTask task;
+      final CompletableFuture<Void> done = new CompletableFuture<Void>();
+      
+      Request(int dir,Tile tile,TileTask task)
       {
-      for(int k=0;k<tiles.size();k++)
+        this.dir = dir;
+        this.tile = tile;
+        this.task = task;
+      }
+      
+      @Override
+      public void run()
       {
-        try 
+        long start = System.nanoTime();
+        try
         {
-          Tile tile = tiles.get(k);
-          tile.lock();
-          
-          File f = new File(tile.filename);
-          if(f.exists())
-          {
-            FileInputStream in = new FileInputStream(tile.filename);
-            in.read(rbuf.array());
-            in.close();
-            for(int x1=tile.o1,i=0;x1<tile.o1+p1;x1++)
-            {
-              for(int x2=tile.o2;x2<tile.o2+p2;x2++)
-              {
-                for(int x3=tile.o3;x3<tile.o3+p3;x3++,i++)
-                {
-                  if(x1-tile.or1>=0&&x1-tile.or1<tile.nr1&&x2-tile.or2>=0&&x2-tile.or2<tile.nr2&&x3-tile.or3>=0&&x3-tile.or3<tile.nr3)
-                  {
-                    arr[i] = tmp_buf[x1-tile.or1][x2-tile.or2][x3-tile.or3];
-                  }
-                  else
-                  {
-                    arr[i] = rbuf.getFloat(4*i);
-                  }
-                }
-              }
-            }
-          }
-          else
-          {
-            for(int x1=tile.o1,i=0;x1<tile.o1+p1;x1++)
-            {
-              for(int x2=tile.o2;x2<tile.o2+p2;x2++)
-              {
-                for(int x3=tile.o3;x3<tile.o3+p3;x3++,i++)
-                {
-                  if ( x1-tile.or1>=0 && x1-tile.or1<tile.nr1
-                    && x2-tile.or2>=0 && x2-tile.or2<tile.nr2
-                    && x3-tile.or3>=0 && x3-tile.or3<tile.nr3
-                     )
-                  {
-                    arr[i] = tmp_buf[x1-tile.or1][x2-tile.or2][x3-tile.or3];
-                  }
-                }
-              }
-            }
-          }
-          
-          buf.asFloatBuffer().put(arr);
-          FileOutputStream out = new FileOutputStream(tile.filename);
-          out.write(buf.array());
-          out.close();
-          
-          tile.unlock();
-        } catch (IOException e) {
-          // TODO Auto-generated catch block
-          tiles.get(k).unlock();
-          e.printStackTrace();
+          task.run(tile);
+          done.complete(null);
+        }
+        catch(IOException e)
+        {
+          done.completeExceptionally(new UncheckedIOException(e));
+        }
+        catch(Throwable e)
+        {
+          done.completeExceptionally(e);
+        }
+        finally
+        {
+          finished(dir, System.nanoTime()-start);
         }
       }
-      tiles.clear();
-      }
+    }
+  }
+  
+  public int get_directory_count()
+  {
+    return directories.size();
+  }
+  
+  public String get_directory(int dir)
+  {
+    return directories.get(dir);
+  }
+  
+  // requests waiting for the directory to drop below its cap
+  public int get_queue_depth(int dir)
+  {
+    IoScheduler scheduler = this.scheduler;
+    return scheduler==null ? 0 : scheduler.queue_depth(dir);
+  }
+  
+  public int get_in_flight(int dir)
+  {
+    IoScheduler scheduler = this.scheduler;
+    return scheduler==null ? 0 : scheduler.in_flight(dir);
+  }
+  
+  public long get_completed_requests(int dir)
+  {
+    IoScheduler scheduler = this.scheduler;
+    return scheduler==null ? 0 : scheduler.completed(dir);
+  }
+  
+  // mean time a request on the directory took once it reached an I/O thread
+  public long get_mean_latency_nanos(int dir)
+  {
+    IoScheduler scheduler = this.scheduler;
+    return scheduler==null ? 0 : scheduler.mean_latency_nanos(dir);
   }
   
-  void runAll(List<Worker> workers)
+  public int get_replication()
   {
-    for(Worker worker:workers)if(worker != null)worker.start();
+    return replication;
   }
   
-  void joinAll(List<Worker> workers)
+  // how long a replica read may take before the next replica is read as well, 0 derives it from observed latency
+  public void set_hedge_delay_nanos(long hedge_delay_nanos) throws VolumeIOException
   {
-      try{
-        for(Worker worker:workers)if(worker != null)((DistributedFile.Worker) worker).join(0);
+    if(hedge_delay_nanos<0)
+    {
+      throw VolumeIOException.fromMessage("hedge delay should not be negative");
+    }
+    this.hedge_delay_nanos = hedge_delay_nanos;
+  }
+  
+  // smoothed latency of replica reads served by the directory, 0 until one was read
+  public long get_replica_latency_nanos(int dir)
+  {
+    synchronized(replica_latency)
+    {
+      return replica_latency[dir];
+    }
+  }
+  
+  private int tile_dir(int key,int replica)
+  {
+    return tile_dirs[key*replication+replica];
+  }
+  
+  private void record_latency(int dir,long nanos)
+  {
+    synchronized(replica_latency)
+    {
+      long latency = replica_latency[dir];
+      replica_latency[dir] = latency==0 ? nanos : latency+(nanos-latency)/LATENCY_SMOOTHING;
+    }
+  }
+  
+  private long hedge_delay(int dir)
+  {
+    if(hedge_delay_nanos>0)
+    {
+      return hedge_delay_nanos;
+    }
+    return Math.max(HEDGE_LATENCY_FACTOR*get_replica_latency_nanos(dir), MIN_HEDGE_DELAY_NANOS);
+  }
+  
+  @Override
+  // the flush and the pyramid update wait on the pools' threads, which must not find the volume's monitor taken
+  public void close() throws VolumeIOException
+  {
+    flush();
+    if(lod_levels>0)
+    {
+      update_pyramid();
+    }
+    synchronized(this)
+    {
+      close_levels();
+      store.close();
+      close_checksums();
+      shutdown_pools();
+    }
+  }
+  
+  private void shutdown_pools()
+  {
+    synchronized(pools_lock)
+    {
+      if(executor!=null)
+      {
+        executor.shutdown();
+        executor = null;
+        scheduler = null;
       }
-      catch (Throwable e) {
-        e.printStackTrace();
+      if(compute_pool!=null)
+      {
+        compute_pool.shutdown();
+        compute_pool = null;
+      }
+      if(hedge_pool!=null)
+      {
+        hedge_pool.shutdown();
+        hedge_pool = null;
+      }
+      if(journal_pool!=null)
+      {
+        journal_pool.shutdown();
+        journal_pool = null;
       }
+    }
   }
   
   public int get_n1(){return n1;}
   public int get_n2(){return n2;}
   public int get_n3(){return n3;}
   
-  private List<Worker> workers;
+  private int threads_per_directory = Runtime.getRuntime().availableProcessors();
+  
+  private ExecutorService executor;
+  
+  private volatile IoScheduler scheduler;
+  
+  private ForkJoinPool compute_pool;
+  
+  private ExecutorService hedge_pool;
+  
+  private ExecutorService journal_pool;
+  
+  // guards the pools and threads_per_directory; never the volume's monitor, the pools' own threads take this
+  private final Object pools_lock = new Object();
+  
+  private volatile boolean memory_mapped = false;
+  
+  private volatile boolean direct_io = false;
+  
+  private volatile Durability durability = Durability.NONE;
+  
+  private Checksum checksum = Checksum.NONE;
+  
+  private ChecksumIndex[] checksums; // per directory, null without checksums
+  
+  private volatile Verify verify = Verify.WHOLE_TILES;
+  
+  private static final int CHECKSUM_ENTRY_BYTES = 8;
+  
+  private final Object journal_lock = new Object(); // one journaled write at a time, they share the journal file
+  
+  private static final String TEMP_SUFFIX = ".tmp";
+  
+  private static final String JOURNAL_SUFFIX = ".journal";
+  
+  private static final String JOURNAL_COMMIT = "commit";
+  
+  private static final String JOURNAL_CHECKSUMS = "checksums";
+  
+  private volatile int[] direct_block; // per directory, the block size O_DIRECT writes are padded to
+  
+  private volatile boolean[] direct_refused; // per directory, set once it refused O_DIRECT
+  
+  private final AtomicLong direct_tiles = new AtomicLong();
+  
+  private final AtomicLong forced_tiles = new AtomicLong();
+  
+  private static final OpenOption DIRECT_OPEN_OPTION = direct_open_option();
+  
+  private static final Object UNSAFE = unsafe();
+  
+  private static final Method INVOKE_CLEANER = invoke_cleaner();
+  
+  private static final int DEFAULT_DIRECT_BLOCK = 4096;
+  
+  private static final int MAX_DIRECT_BLOCK = 1<<20;
+  
+  private volatile long mapped_bytes_budget = 1L<<30;
+  
+  private final TileMaps tile_maps = new TileMaps();
+  
+  private final TileCache tile_cache = new TileCache();
+  
+  private final Prefetcher prefetcher = new Prefetcher();
+  
+  private static final int MAX_PREFETCH_WINDOWS = 64; // windows looked ahead along a detected step
+  
+  private final WriteBack write_back = new WriteBack();
+  
+  private final ThreadLocal<TileBuffers> tile_buffers = new ThreadLocal<TileBuffers>()
+  {
+    @Override
+    protected TileBuffers initialValue()
+    {
+      return new TileBuffers();
+    }
+  };
   
   private String _header;
   
@@ -1299,21 +5879,61 @@ class DistributedFile {
   
   private String suffix;
   
+  private Codec codec = Codec.RAW;
+  
+  private int truncate_bits = 0; // low mantissa bits zeroed before encoding, 0 keeps tiles lossless
+  
+  private Layout layout = Layout.FILES;
+  
+  private Placement placement = Placement.ROUND_ROBIN;
+  
+  private DirTokens dir_tokens = DirTokens.LEGACY;
+  
+  private int[] weights; // per directory, only for placement=weighted
+  
+  private int replication = 1; // copies of every tile, each in a different directory
+  
+  private volatile long hedge_delay_nanos = 0;
+  
+  private long[] replica_latency = new long[0]; // smoothed per directory, guarded by itself
+  
+  private static final int LATENCY_SMOOTHING = 8;
+  
+  private static final int HEDGE_LATENCY_FACTOR = 4;
+  
+  private static final long MIN_HEDGE_DELAY_NANOS = 1000000;
+  
+  private volatile int lod_levels = 0;
+  
+  private volatile IngestStats ingest_stats;
+  
+  private final BitSet stale_tiles = new BitSet(); // base tiles written since the pyramid was last updated
+  
+  private final Map<Integer,DistributedFile> levels_open = new HashMap<Integer,DistributedFile>();
+  
+  private TileStore store;
+  
   private List<Dir> dirs;
   
   private List<String> directories;
   
+  private TileServer.Client[] remote_hosts; // per directory, null for the local ones
+  
+  private boolean remote; // some directory is behind a tile server
+  
   private String[][][] filenames;
   
-  private Lock[][][] mutex;
+  private int[] directory_order; // directories alternating across hosts, replicas follow their first copy along it
+  
+  private int[] tile_dirs; // directory of each replica by key*replication+replica
   
-  private float[][][] output_buf;
+  private int[] tile_slots; // position of each replica among the replicas of its directory
   
-  private float[][][] tmp_buf;
+  private int[] directory_tiles; // number of replicas in each directory
   
-  private int O1,O2,O3;
+  private static final int MAX_TILE_LOCKS = 4096;
   
-  private Lock global_mutex = new ReentrantLock(true); //protects the above, in case the user wants to use this class in parallel
+  private ReadWriteLock[] tile_locks; //striped by tile key, readers of a tile share it, writers hold it exclusively
   
   
 }
@@ -0,0 +1,611 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// serves the tile files of its local directories to DistributedFile volumes whose dir= lines name host:port
+//
+// requests:  op(byte) path_length(short) path(utf-8) position(long) length(int) [length bytes for WRITE]
+// responses: status(byte) value(long) [value bytes for a READ, or a utf-8 message for an ERROR]
+//
+// a connection handles its requests in order, so clients may pipeline a batch and read the answers afterwards
+public class TileServer implements AutoCloseable
+{
+  static final byte LENGTH = 1; // value is the file length
+  static final byte READ = 2;   // value is the number of bytes that follow, fewer than asked only at the end of file
+  static final byte WRITE = 3;  // replaces the file by the length bytes that follow the request
+  static final byte DELETE = 4; // value is 1 when a file was deleted
+  static final byte PURGE = 5;  // deletes every file of the directory, value is how many
+  
+  private static final long MAX_ACCEPT_BACKOFF_MILLIS = 1000; // retry delay when accept keeps failing, out of descriptors say
+  
+  static final byte OK = 0;
+  static final byte MISSING = 1;
+  static final byte ERROR = 2;
+  
+  private final List<Path> roots = new ArrayList<Path>();
+  
+  private final ServerSocketChannel server;
+  
+  private final ExecutorService connections;
+  
+  private volatile boolean closed = false;
+  
+  // port 0 picks a free one, see get_port; only clients on this machine can connect
+  public TileServer(int port,String... directories) throws IOException
+  {
+    this(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), directories);
+  }
+  
+  // listens on the interface of host only, 0.0.0.0 or :: for every interface
+  public TileServer(String host,int port,String... directories) throws IOException
+  {
+    this(new InetSocketAddress(host, port), directories);
+  }
+  
+  private TileServer(InetSocketAddress address,String... directories) throws IOException
+  {
+    if(directories.length==0)
+    {
+      throw new IOException("a tile server needs at least one directory");
+    }
+    for(String dir : directories)
+    {
+      roots.add(Paths.get(dir).toAbsolutePath().normalize());
+    }
+    server = ServerSocketChannel.open();
+    server.bind(address);
+    connections = Executors.newCachedThreadPool(new ThreadFactory()
+    {
+      private final AtomicInteger index = new AtomicInteger();
+      
+      @Override
+      public Thread newThread(Runnable r)
+      {
+        Thread thread = new Thread(r, String.format("TileServer-%d", index.getAndIncrement()));
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    connections.execute(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        accept();
+      }
+    });
+  }
+  
+  public int get_port()
+  {
+    return ((InetSocketAddress)server.socket().getLocalSocketAddress()).getPort();
+  }
+  
+  @Override
+  public void close() throws IOException
+  {
+    closed = true;
+    server.close();
+    connections.shutdownNow();
+  }
+  
+  private void accept()
+  {
+    long backoff = 0;
+    while(!closed)
+    {
+      final SocketChannel channel;
+      try
+      {
+        channel = server.accept();
+        backoff = 0;
+      }
+      catch(IOException e)
+      {
+        if(closed)
+        {
+          break;
+        }
+        // failures like running out of descriptors last a while, retrying at once would spin
+        if(backoff==0)
+        {
+          e.printStackTrace();
+        }
+        backoff = Math.min(Math.max(2*backoff, 1), MAX_ACCEPT_BACKOFF_MILLIS);
+        try
+        {
+          Thread.sleep(backoff);
+        }
+        catch(InterruptedException ie)
+        {
+          break;
+        }
+        continue;
+      }
+      try
+      {
+        channel.socket().setTcpNoDelay(true);
+        connections.execute(new Runnable()
+        {
+          @Override
+          public void run()
+          {
+            serve(channel);
+          }
+        });
+      }
+      catch(IOException|RejectedExecutionException e)
+      {
+        // broken already, or accepted while closing; the client sees the connection drop instead of waiting for an answer
+        try
+        {
+          channel.close();
+        }
+        catch(IOException ce)
+        {
+        }
+      }
+    }
+  }
+  
+  private void serve(SocketChannel channel)
+  {
+    try
+    {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+      ByteBuffer head = ByteBuffer.allocate(1+Long.BYTES);
+      while(true)
+      {
+        byte op;
+        try
+        {
+          op = in.readByte();
+        }
+        catch(EOFException e)
+        {
+          break;
+        }
+        byte[] name = new byte[in.readUnsignedShort()];
+        in.readFully(name);
+        long position = in.readLong();
+        int length = in.readInt();
+        byte[] payload = null;
+        if(op==WRITE)
+        {
+          payload = new byte[length];
+          in.readFully(payload);
+        }
+        try
+        {
+          Path path = resolve(new String(name, StandardCharsets.UTF_8));
+          handle(channel, head, op, path, position, length, payload);
+        }
+        catch(NoSuchFileException e)
+        {
+          respond(channel, head, MISSING, 0);
+        }
+        catch(IOException e)
+        {
+          if(!channel.isOpen())
+          {
+            break;
+          }
+          byte[] message = String.valueOf(e.getMessage()).getBytes(StandardCharsets.UTF_8);
+          respond(channel, head, ERROR, message.length);
+          write_fully(channel, ByteBuffer.wrap(message));
+        }
+      }
+    }
+    catch(IOException e)
+    {
+      if(!closed)
+      {
+        e.printStackTrace();
+      }
+    }
+    finally
+    {
+      try
+      {
+        channel.close();
+      }
+      catch(IOException e)
+      {
+      }
+    }
+  }
+  
+  private void handle(SocketChannel channel,ByteBuffer head,byte op,Path path,long position,int length,byte[] payload) throws IOException
+  {
+    File file = path.toFile();
+    switch(op)
+    {
+      case LENGTH:
+        if(!file.isFile())
+        {
+          throw new NoSuchFileException(path.toString());
+        }
+        respond(channel, head, OK, file.length());
+        break;
+      case READ:
+        FileChannel source = FileChannel.open(path, StandardOpenOption.READ);
+        try
+        {
+          long count = Math.max(0, Math.min(length, source.size()-position));
+          respond(channel, head, OK, count);
+          try
+          {
+            // the file goes to the socket without passing through the heap
+            for(long sent=0;sent<count;)
+            {
+              long n = source.transferTo(position+sent, count-sent, channel);
+              if(n<=0)
+              {
+                throw new IOException(path+" shrank while it was sent");
+              }
+              sent += n;
+            }
+          }
+          catch(IOException e)
+          {
+            // the answer is under way, an error frame would be read as file bytes; the client sees the connection drop
+            channel.close();
+            throw e;
+          }
+        }
+        finally
+        {
+          source.close();
+        }
+        break;
+      case WRITE:
+        FileOutputStream out = new FileOutputStream(file);
+        try
+        {
+          out.write(payload);
+        }
+        finally
+        {
+          out.close();
+        }
+        respond(channel, head, OK, length);
+        break;
+      case DELETE:
+        respond(channel, head, OK, file.isFile()&&file.delete() ? 1 : 0);
+        break;
+      case PURGE:
+        long deleted = 0;
+        File[] files = file.listFiles();
+        if(files!=null)
+        {
+          for(File f : files)
+          {
+            if(f.isFile()&&f.delete())
+            {
+              deleted++;
+            }
+          }
+        }
+        respond(channel, head, OK, deleted);
+        break;
+      default:
+        throw new IOException("unknown op:"+op);
+    }
+  }
+  
+  // only paths inside the served directories are answered
+  private Path resolve(String name) throws IOException
+  {
+    Path path = Paths.get(name).toAbsolutePath().normalize();
+    for(Path root : roots)
+    {
+      if(path.startsWith(root))
+      {
+        return path;
+      }
+    }
+    throw new IOException("not served here:"+name);
+  }
+  
+  private static void respond(SocketChannel channel,ByteBuffer head,byte status,long value) throws IOException
+  {
+    head.clear();
+    head.put(status).putLong(value).flip();
+    write_fully(channel, head);
+  }
+  
+  private static void write_fully(SocketChannel channel,ByteBuffer src) throws IOException
+  {
+    while(src.hasRemaining())
+    {
+      channel.write(src);
+    }
+  }
+  
+  // java TileServer [host:]port dir..., without a host only local clients are served
+  public static void main(String[] args) throws Exception
+  {
+    if(args.length<2)
+    {
+      System.err.println("usage: java TileServer [host:]port dir...");
+      System.exit(1);
+    }
+    String[] directories = new String[args.length-1];
+    System.arraycopy(args, 1, directories, 0, directories.length);
+    int colon = args[0].lastIndexOf(':');
+    TileServer server = colon<0 ? new TileServer(Integer.parseInt(args[0]), directories)
+                                : new TileServer(args[0].substring(0, colon), Integer.parseInt(args[0].substring(colon+1)), directories);
+    System.out.println("serving "+String.join(" ", directories)+" on "+server.server.socket().getLocalSocketAddress());
+    Thread.currentThread().join();
+  }
+  
+  // talks to one tile server, connections are pooled so that each calling thread has its own while it waits
+  public static class Client implements AutoCloseable
+  {
+    private static final int BATCH = 256; // requests written before their answers are read, bounded so neither side blocks on a full socket
+    
+    private final InetSocketAddress address;
+    
+    private final ArrayDeque<Connection> idle = new ArrayDeque<Connection>();
+    
+    public Client(InetSocketAddress address)
+    {
+      this.address = address;
+    }
+    
+    public InetSocketAddress get_address()
+    {
+      return address;
+    }
+    
+    private class Connection
+    {
+      final SocketChannel channel;
+      final DataInputStream in;
+      final DataOutputStream out;
+      
+      Connection() throws IOException
+      {
+        channel = SocketChannel.open(address);
+        channel.socket().setTcpNoDelay(true);
+        in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+        out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+      }
+      
+      void request(byte op,String path,long position,int length) throws IOException
+      {
+        byte[] name = path.getBytes(StandardCharsets.UTF_8);
+        out.writeByte(op);
+        out.writeShort(name.length);
+        out.write(name);
+        out.writeLong(position);
+        out.writeInt(length);
+      }
+      
+      // the value of an OK answer, -1 for a missing file
+      long answer(String path) throws IOException
+      {
+        byte status = in.readByte();
+        long value = in.readLong();
+        if(status==ERROR)
+        {
+          byte[] message = new byte[(int)value];
+          in.readFully(message);
+          throw new IOException(address+": "+path+": "+new String(message, StandardCharsets.UTF_8));
+        }
+        return status==MISSING ? -1 : value;
+      }
+      
+      // the count bytes that follow an OK answer to a READ
+      void receive(ByteBuffer dst,int count) throws IOException
+      {
+        if(dst.hasArray())
+        {
+          in.readFully(dst.array(), dst.arrayOffset()+dst.position(), count);
+          dst.position(dst.position()+count);
+        }
+        else
+        {
+          byte[] bytes = new byte[count];
+          in.readFully(bytes);
+          dst.put(bytes);
+        }
+      }
+    }
+    
+    private Connection borrow() throws IOException
+    {
+      synchronized(idle)
+      {
+        if(!idle.isEmpty())
+        {
+          return idle.pop();
+        }
+      }
+      return new Connection();
+    }
+    
+    private void release(Connection connection)
+    {
+      synchronized(idle)
+      {
+        idle.push(connection);
+      }
+    }
+    
+    // a connection that failed mid request may hold half an answer and is dropped
+    private void discard(Connection connection)
+    {
+      try
+      {
+        connection.channel.close();
+      }
+      catch(IOException e)
+      {
+      }
+    }
+    
+    public long length(String path) throws IOException
+    {
+      return lengths(new String[]{path})[0];
+    }
+    
+    // lengths of many files in pipelined batches, -1 for the missing ones
+    public long[] lengths(String[] paths) throws IOException
+    {
+      return batch(LENGTH, paths);
+    }
+    
+    public boolean delete(String path) throws IOException
+    {
+      return delete(new String[]{path})==1;
+    }
+    
+    // deletes many files in pipelined batches and returns how many existed
+    public int delete(String[] paths) throws IOException
+    {
+      int deleted = 0;
+      for(long d : batch(DELETE, paths))
+      {
+        deleted += d>0 ? 1 : 0;
+      }
+      return deleted;
+    }
+    
+    public long purge(String directory) throws IOException
+    {
+      return batch(PURGE, new String[]{directory})[0];
+    }
+    
+    private long[] batch(byte op,String[] paths) throws IOException
+    {
+      long[] values = new long[paths.length];
+      Connection connection = borrow();
+      try
+      {
+        for(int i=0;i<paths.length;i+=BATCH)
+        {
+          int end = Math.min(i+BATCH, paths.length);
+          for(int j=i;j<end;j++)
+          {
+            connection.request(op, paths[j], 0, 0);
+          }
+          connection.out.flush();
+          for(int j=i;j<end;j++)
+          {
+            values[j] = connection.answer(paths[j]);
+          }
+        }
+      }
+      catch(IOException e)
+      {
+        discard(connection);
+        throw e;
+      }
+      release(connection);
+      return values;
+    }
+    
+    // fills dst from the file starting at position, stops early only at its end
+    public int read(String path,long position,ByteBuffer dst) throws IOException
+    {
+      int count = read(new String[]{path}, new long[]{position}, new ByteBuffer[]{dst})[0];
+      if(count<0)
+      {
+        throw new NoSuchFileException(address+": "+path);
+      }
+      return count;
+    }
+    
+    // fills each dst from its file starting at its position in pipelined batches; a count falls short only at
+    // the end of the file and is -1 for a missing file
+    public int[] read(String[] paths,long[] positions,ByteBuffer[] dsts) throws IOException
+    {
+      int[] counts = new int[paths.length];
+      Connection connection = borrow();
+      try
+      {
+        for(int i=0;i<paths.length;i+=BATCH)
+        {
+          int end = Math.min(i+BATCH, paths.length);
+          for(int j=i;j<end;j++)
+          {
+            connection.request(READ, paths[j], positions[j], dsts[j].remaining());
+          }
+          connection.out.flush();
+          for(int j=i;j<end;j++)
+          {
+            counts[j] = (int)connection.answer(paths[j]);
+            if(counts[j]>0)
+            {
+              connection.receive(dsts[j], counts[j]);
+            }
+          }
+        }
+      }
+      catch(IOException e)
+      {
+        discard(connection);
+        throw e;
+      }
+      release(connection);
+      return counts;
+    }
+    
+    public void write(String path,byte[] src,int length) throws IOException
+    {
+      Connection connection = borrow();
+      try
+      {
+        connection.request(WRITE, path, 0, length);
+        connection.out.write(src, 0, length);
+        connection.out.flush();
+        connection.answer(path);
+      }
+      catch(IOException e)
+      {
+        discard(connection);
+        throw e;
+      }
+      release(connection);
+    }
+    
+    // closes the idle connections, the client reconnects when used again
+    @Override
+    public void close()
+    {
+      synchronized(idle)
+      {
+        while(!idle.isEmpty())
+        {
+          discard(idle.pop());
+        }
+      }
+    }
+  }
+}
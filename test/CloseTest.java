@@ -0,0 +1,72 @@
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+// javac -d out *.java test/CloseTest.java && java -cp out CloseTest
+//
+// close flushes buffered writes and updates the pyramid on the I/O threads; with replication those threads
+// read through the hedge pool, and must get to it while close is running
+public class CloseTest
+{
+  public static void main(String[] args) throws Exception
+  {
+    Path root = Files.createTempDirectory("close");
+    String a = root.resolve("a").toString();
+    String b = root.resolve("b").toString();
+    new File(a).mkdir();
+    new File(b).mkdir();
+    int n = 16;
+    for(boolean pyramid : new boolean[]{false,true})
+    {
+      String header = root.resolve(pyramid ? "pyramid.MSD" : "volume.MSD").toString();
+      DistributedFile file = new DistributedFile(header,0,0,0,n,n,n,1,1,1,8,8,8,pyramid ? "p" : "v",".bin","localhost "+a+" "+b,"replication=2");
+      file.write_data_local_coordinates(0,0,0,new float[n][n][n]);
+      if(pyramid)
+      {
+        file.build_pyramid(1);
+      }
+      file.set_write_back(1<<30);
+      // a partial write into an existing tile, so the flush has to read the tile back first
+      file.write_data_local_coordinates(1,2,3,new float[][][]{{{5}}});
+      close_within(file, 60);
+      DistributedFile reopened = new DistributedFile(header);
+      check(reopened.read_data_local_coords(1,2,3)==5, "buffered write lost on close");
+      reopened.close();
+    }
+    System.out.println("ok");
+  }
+  
+  // a hung close must fail the test, not keep the JVM alive, hence the daemon thread
+  private static void close_within(final DistributedFile file,int seconds) throws Exception
+  {
+    final Exception[] failure = new Exception[1];
+    Thread closer = new Thread(() ->
+    {
+      try
+      {
+        file.close();
+      }
+      catch(Exception e)
+      {
+        failure[0] = e;
+      }
+    });
+    closer.setDaemon(true);
+    closer.start();
+    closer.join(TimeUnit.SECONDS.toMillis(seconds));
+    check(!closer.isAlive(), "close did not return within "+seconds+" s");
+    if(failure[0]!=null)
+    {
+      throw failure[0];
+    }
+  }
+  
+  private static void check(boolean condition,String message)
+  {
+    if(!condition)
+    {
+      throw new AssertionError(message);
+    }
+  }
+}
@@ -0,0 +1,62 @@
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+// javac -d out *.java test/CodecBenchmark.java && java -cp out CodecBenchmark [dir]
+//
+// writes and reads back the same smooth, seismic like volume with each codec, lossless and with truncate_bits,
+// and reports the bytes on disk against the raw 4 bytes per sample
+public class CodecBenchmark
+{
+  private static final int N = 128;
+  private static final int P = 32;
+  private static final int ROUNDS = 3;
+  private static final int TRUNCATE_BITS = 12;
+  
+  public static void main(String[] args) throws Exception
+  {
+    Path root = args.length>0 ? Files.createTempDirectory(new File(args[0]).toPath(), "codec") : Files.createTempDirectory("codec");
+    String a = root.resolve("a").toString();
+    String b = root.resolve("b").toString();
+    new File(a).mkdir();
+    new File(b).mkdir();
+    float[][][] volume = new float[N][N][N];
+    for(int i1=0;i1<N;i1++)
+    {
+      for(int i2=0;i2<N;i2++)
+      {
+        for(int i3=0;i3<N;i3++)
+        {
+          // dipping reflectors under a slowly varying amplitude, traces along x3
+          volume[i1][i2][i3] = (float)(Math.sin(0.2*i3+0.03*i1+0.05*i2)*Math.exp(-i3/(double)N)*(1000+i1+i2));
+        }
+      }
+    }
+    double megabytes = (double)N*N*N*Float.BYTES/(1<<20);
+    for(String codec : new String[]{"raw","deflate","float"})
+    {
+      for(int truncate_bits : new int[]{0,TRUNCATE_BITS})
+      {
+        DistributedFile file = new DistributedFile(root.resolve("volume.MSD").toString(),0,0,0,N,N,N,1,1,1,P,P,P,"v",".bin","localhost "+a+" "+b,"codec="+codec,"truncate_bits="+truncate_bits);
+        file.write_data_local_coordinates(0,0,0,volume);
+        long start = System.nanoTime();
+        for(int r=0;r<ROUNDS;r++)
+        {
+          file.write_data_local_coordinates(0,0,0,volume);
+        }
+        double write_seconds = (System.nanoTime()-start)/1e9;
+        file.read_data();
+        start = System.nanoTime();
+        for(int r=0;r<ROUNDS;r++)
+        {
+          file.read_data();
+        }
+        double read_seconds = (System.nanoTime()-start)/1e9;
+        long stored = file.get_stored_bytes();
+        System.out.println(String.format("%-8s truncate_bits=%-2d %8.1f MB on disk %5.1f%% of raw %8.1f MB/s write %8.1f MB/s read", codec, truncate_bits, (double)stored/(1<<20), 100.0*stored/(megabytes*(1<<20)), ROUNDS*megabytes/write_seconds, ROUNDS*megabytes/read_seconds));
+        file.clean();
+        file.close();
+      }
+    }
+  }
+}
@@ -0,0 +1,69 @@
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+// javac -d out *.java test/DirectIoBenchmark.java && java -cp out DirectIoBenchmark [dir]
+//
+// times whole volume writes through the page cache and with set_direct_io, and reports how much the page cache
+// grew from the "Cached:" line of /proc/meminfo where there is one. Other processes move that figure too, so
+// run it on a quiet node; tmpfs is page cache itself, point dir at the disk to measure
+public class DirectIoBenchmark
+{
+  private static final int N = 256;
+  private static final int P = 64;
+  private static final int ROUNDS = 3;
+  
+  public static void main(String[] args) throws Exception
+  {
+    Path root = args.length>0 ? Files.createTempDirectory(new File(args[0]).toPath(), "direct") : Files.createTempDirectory("direct");
+    String a = root.resolve("a").toString();
+    String b = root.resolve("b").toString();
+    new File(a).mkdir();
+    new File(b).mkdir();
+    float[][][] volume = new float[N][N][N];
+    double megabytes = (double)N*N*N*Float.BYTES/(1<<20);
+    boolean meminfo = cached_bytes()>=0;
+    for(boolean direct : new boolean[]{false,true})
+    {
+      double seconds = 0;
+      long cached = 0;
+      long direct_tiles = 0;
+      long forced_tiles = 0;
+      // a fresh volume each round, so every tile is new to the page cache
+      for(int r=0;r<ROUNDS;r++)
+      {
+        DistributedFile file = new DistributedFile(root.resolve("volume.MSD").toString(),0,0,0,N,N,N,1,1,1,P,P,P,"v",".bin","localhost "+a+" "+b);
+        file.set_direct_io(direct);
+        long before = cached_bytes();
+        long start = System.nanoTime();
+        file.write_data_local_coordinates(0,0,0,volume);
+        seconds += (System.nanoTime()-start)/1e9;
+        cached += cached_bytes()-before;
+        direct_tiles += file.get_direct_tiles();
+        forced_tiles += file.get_forced_tiles();
+        file.clean();
+        file.close();
+      }
+      String growth = !meminfo ? "n/a" : String.format("%.1f MB", (double)cached/ROUNDS/(1<<20));
+      System.out.println(String.format("%-8s %8.1f MB/s %10s page cache growth per %.0f MB written, %d direct %d forced tiles", direct ? "direct" : "buffered", ROUNDS*megabytes/seconds, growth, megabytes, direct_tiles, forced_tiles));
+    }
+  }
+  
+  private static long cached_bytes() throws Exception
+  {
+    Path meminfo = Paths.get("/proc/meminfo");
+    if(!Files.isReadable(meminfo))
+    {
+      return -1;
+    }
+    for(String line : Files.readAllLines(meminfo))
+    {
+      if(line.startsWith("Cached:"))
+      {
+        return 1024*Long.parseLong(line.replaceAll("[^0-9]", ""));
+      }
+    }
+    return -1;
+  }
+}
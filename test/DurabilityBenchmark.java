@@ -0,0 +1,50 @@
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+// javac -d out *.java test/DurabilityBenchmark.java && java -cp out DurabilityBenchmark [dir]
+//
+// times whole volume and single tile writes under each durability; ATOMIC and JOURNAL force every tile they
+// write, so the gap to NONE is mostly the device's flush latency. Point dir at the disk to measure, tmpfs hides it
+public class DurabilityBenchmark
+{
+  private static final int N = 128;
+  private static final int P = 32;
+  private static final int ROUNDS = 5;
+  private static final int TILE_WRITES = 50;
+  
+  public static void main(String[] args) throws Exception
+  {
+    Path root = args.length>0 ? Files.createTempDirectory(new File(args[0]).toPath(), "durability") : Files.createTempDirectory("durability");
+    String a = root.resolve("a").toString();
+    String b = root.resolve("b").toString();
+    new File(a).mkdir();
+    new File(b).mkdir();
+    float[][][] volume = new float[N][N][N];
+    float[][][] tile = new float[P][P][P];
+    for(DistributedFile.Durability durability : DistributedFile.Durability.values())
+    {
+      DistributedFile file = new DistributedFile(root.resolve("volume.MSD").toString(),0,0,0,N,N,N,1,1,1,P,P,P,"v",".bin","localhost "+a+" "+b);
+      file.set_durability(durability);
+      file.write_data_local_coordinates(0,0,0,volume);
+      long start = System.nanoTime();
+      for(int r=0;r<ROUNDS;r++)
+      {
+        volume[0][0][0] = r;
+        file.write_data_local_coordinates(0,0,0,volume);
+      }
+      double volume_seconds = (System.nanoTime()-start)/1e9;
+      start = System.nanoTime();
+      for(int w=0;w<TILE_WRITES;w++)
+      {
+        tile[0][0][0] = w;
+        file.write_data_local_coordinates((w%(N/P))*P,0,0,tile);
+      }
+      double tile_seconds = (System.nanoTime()-start)/1e9;
+      double megabytes = (double)ROUNDS*N*N*N*Float.BYTES/(1<<20);
+      System.out.println(String.format("%-8s %8.1f MB/s whole volume %8.2f ms per single tile write", durability, megabytes/volume_seconds, 1e3*tile_seconds/TILE_WRITES));
+      file.clean();
+      file.close();
+    }
+  }
+}
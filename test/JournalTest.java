@@ -0,0 +1,55 @@
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+// javac -d out *.java test/JournalTest.java && java -cp out JournalTest
+public class JournalTest
+{
+  public static void main(String[] args) throws Exception
+  {
+    Path root = Files.createTempDirectory("journal");
+    String a = root.resolve("a").toString();
+    String b = root.resolve("b").toString();
+    new File(a).mkdir();
+    new File(b).mkdir();
+    int n = 16;
+    DistributedFile file = new DistributedFile(root.resolve("volume.MSD").toString(),0,0,0,n,n,n,1,1,1,8,8,8,"v",".bin","localhost "+a+" "+b);
+    file.set_durability(DistributedFile.Durability.JOURNAL);
+    file.write_data_local_coordinates(0,0,0,new float[n][n][n]);
+    
+    // asynchronous writes skip the journal but must still replace their tiles, never overwrite them in place
+    Path tile = Paths.get(a, "v0_0_0.bin");
+    Object inode = Files.getAttribute(tile, "unix:ino");
+    float[][][] data = new float[n][n][n];
+    for(float[][] plane : data)
+    {
+      for(float[] row : plane)
+      {
+        Arrays.fill(row, 3);
+      }
+    }
+    file.write_region_async(0,0,0,data).join();
+    check(!inode.equals(Files.getAttribute(tile, "unix:ino")), "tile overwritten in place");
+    check(Arrays.deepEquals(data, file.read_data()), "asynchronous write lost");
+    for(String dir : new String[]{a,b})
+    {
+      for(File f : new File(dir).listFiles())
+      {
+        check(!f.getName().endsWith(".tmp"), "staged tile left: "+f);
+      }
+    }
+    check(!new File(root.resolve("volume.MSD.journal").toString()).exists(), "journal left");
+    file.close();
+    System.out.println("ok");
+  }
+  
+  private static void check(boolean condition,String message)
+  {
+    if(!condition)
+    {
+      throw new AssertionError(message);
+    }
+  }
+}
@@ -0,0 +1,61 @@
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+// javac -d out *.java test/ProbeBenchmark.java && java -cp out ProbeBenchmark [dir]
+//
+// times many small region reads, the probes a service issues by the thousand; at these sizes the cost is the
+// per call overhead of handing tiles to the I/O threads, not the bytes read
+public class ProbeBenchmark
+{
+  private static final int N = 128;
+  private static final int P = 32;
+  private static final int WARMUP = 2000;
+  private static final int PROBES = 20000;
+  
+  public static void main(String[] args) throws Exception
+  {
+    Path root = args.length>0 ? Files.createTempDirectory(new File(args[0]).toPath(), "probe") : Files.createTempDirectory("probe");
+    String a = root.resolve("a").toString();
+    String b = root.resolve("b").toString();
+    new File(a).mkdir();
+    new File(b).mkdir();
+    DistributedFile file = new DistributedFile(root.resolve("volume.MSD").toString(),0,0,0,N,N,N,1,1,1,P,P,P,"v",".bin","localhost "+a+" "+b);
+    file.write_data_local_coordinates(0,0,0,new float[N][N][N]);
+    // a probe inside one tile, and one straddling the corner of eight
+    probe(file, "1^3", 1, 0);
+    probe(file, "4^3", 4, 0);
+    probe(file, "4^3 x8", 4, P-2);
+    probe(file, "16^3", 16, 0);
+    file.clean();
+    file.close();
+  }
+  
+  private static void probe(DistributedFile file,String name,int n,int shift) throws Exception
+  {
+    for(int i=0;i<WARMUP;i++)
+    {
+      read(file, i, n, shift);
+    }
+    long start = System.nanoTime();
+    for(int i=0;i<PROBES;i++)
+    {
+      read(file, i, n, shift);
+    }
+    double seconds = (System.nanoTime()-start)/1e9;
+    System.out.println(String.format("%-8s %8.1f us per probe %10.0f probes/s", name, 1e6*seconds/PROBES, PROBES/seconds));
+  }
+  
+  // walks the probes over all the tiles, so no single tile file stays hot
+  private static void read(DistributedFile file,int i,int n,int shift) throws Exception
+  {
+    int tiles = N/P;
+    int t1 = i%tiles;
+    int t2 = (i/tiles)%tiles;
+    int t3 = (i/(tiles*tiles))%tiles;
+    int o1 = Math.min(t1*P+shift, N-n);
+    int o2 = Math.min(t2*P+shift, N-n);
+    int o3 = Math.min(t3*P+shift, N-n);
+    file.read_data_local_coords(o1,o2,o3,n,n,n);
+  }
+}
@@ -0,0 +1,38 @@
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+// javac -d out *.java test/ScrubTest.java && java -cp out ScrubTest
+public class ScrubTest
+{
+  public static void main(String[] args) throws Exception
+  {
+    Path root = Files.createTempDirectory("scrub");
+    String a = root.resolve("a").toString();
+    new File(a).mkdir();
+    int n = 16;
+    DistributedFile file = new DistributedFile(root.resolve("volume.MSD").toString(),0,0,0,n,n,n,1,1,1,8,8,8,"v",".bin","localhost "+a,"checksum=crc32c");
+    float[][][] data = new float[n][n][n];
+    data[1][2][3] = 1;
+    file.write_data_local_coordinates(0,0,0,data);
+    DistributedFile.ScrubReport report = file.scrub();
+    check(report.replicas==8&&report.corrupt.isEmpty(), "clean volume: "+report);
+    
+    // a tile deleted behind the volume's back is reported, not skipped
+    Files.delete(Paths.get(a, "v0_0_0.bin"));
+    report = file.scrub();
+    check(report.replicas==8, "missing tile not counted: "+report);
+    check(report.corrupt.size()==1&&report.corrupt.get(0).contains("missing"), "missing tile not reported: "+report.corrupt);
+    file.close();
+    System.out.println("ok");
+  }
+  
+  private static void check(boolean condition,String message)
+  {
+    if(!condition)
+    {
+      throw new AssertionError(message);
+    }
+  }
+}
@@ -0,0 +1,55 @@
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+// javac -d out *.java test/SliceBenchmark.java && java -cp out SliceBenchmark [dir]
+//
+// times read_slice on each axis against a region read of the same plane, which reads every tile it touches
+// in full; axis 1 planes are contiguous in a tile, axis 3 planes are single samples p3 apart
+public class SliceBenchmark
+{
+  private static final int N = 256;
+  private static final int P = 64;
+  private static final int SLICES = 40;
+  
+  public static void main(String[] args) throws Exception
+  {
+    Path root = args.length>0 ? Files.createTempDirectory(new File(args[0]).toPath(), "slice") : Files.createTempDirectory("slice");
+    String a = root.resolve("a").toString();
+    String b = root.resolve("b").toString();
+    new File(a).mkdir();
+    new File(b).mkdir();
+    DistributedFile file = new DistributedFile(root.resolve("volume.MSD").toString(),0,0,0,N,N,N,1,1,1,P,P,P,"v",".bin","localhost "+a+" "+b);
+    file.write_data_local_coordinates(0,0,0,new float[N][N][N]);
+    for(int axis=1;axis<=3;axis++)
+    {
+      // one untimed pass of each, so neither pays for the first touch of the files
+      time(file, axis, true);
+      time(file, axis, false);
+      double slice_seconds = time(file, axis, true);
+      double region_seconds = time(file, axis, false);
+      System.out.println(String.format("axis %d %8.2f ms per read_slice %8.2f ms per region read %6.1fx", axis, 1e3*slice_seconds/SLICES, 1e3*region_seconds/SLICES, region_seconds/slice_seconds));
+    }
+    file.clean();
+    file.close();
+  }
+  
+  private static double time(DistributedFile file,int axis,boolean slice) throws Exception
+  {
+    long start = System.nanoTime();
+    for(int s=0;s<SLICES;s++)
+    {
+      // steps through the planes so successive slices fall in different tiles
+      int index = (s*37)%N;
+      if(slice)
+      {
+        file.read_slice(axis, index);
+      }
+      else
+      {
+        file.read_data_local_coords(axis==1 ? index : 0, axis==2 ? index : 0, axis==3 ? index : 0, axis==1 ? 1 : N, axis==2 ? 1 : N, axis==3 ? 1 : N);
+      }
+    }
+    return (System.nanoTime()-start)/1e9;
+  }
+}
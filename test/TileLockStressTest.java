@@ -0,0 +1,160 @@
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+// javac -d out *.java test/TileLockStressTest.java && java -cp out TileLockStressTest [threads]
+//
+// writers rewrite slabs of rows that share tiles with their neighbours while readers read the whole volume;
+// a read must never see half of a tile's update, and no update may be lost to a neighbour's merge of the same tile
+public class TileLockStressTest
+{
+  private static final int N = 48;
+  private static final int P = 8;
+  private static final int SLAB = 3; // rows per writer, not a divisor of P so slabs share tiles
+  private static final int WRITES = 50;
+  
+  public static void main(String[] args) throws Exception
+  {
+    int threads = args.length>0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+    Path root = Files.createTempDirectory("stress");
+    String a = root.resolve("a").toString();
+    String b = root.resolve("b").toString();
+    new File(a).mkdir();
+    new File(b).mkdir();
+    final DistributedFile file = new DistributedFile(root.resolve("volume.MSD").toString(),0,0,0,N,N,N,1,1,1,P,P,P,"v",".bin","localhost "+a+" "+b);
+    file.write_data_local_coordinates(0,0,0,new float[N][N][N]);
+    
+    final int slabs = N/SLAB;
+    ExecutorService pool = Executors.newFixedThreadPool(slabs+threads);
+    List<Future<Void>> writers = new ArrayList<Future<Void>>();
+    for(int s=0;s<slabs;s++)
+    {
+      final int slab = s;
+      writers.add(pool.submit(new Callable<Void>()
+      {
+        @Override
+        public Void call() throws Exception
+        {
+          float[][][] data = new float[SLAB][N][N];
+          for(int w=1;w<=WRITES;w++)
+          {
+            fill(data, value(slab, w));
+            file.write_data_local_coordinates(slab*SLAB,0,0,data);
+          }
+          return null;
+        }
+      }));
+    }
+    final long[] reads = new long[threads];
+    List<Future<Void>> readers = new ArrayList<Future<Void>>();
+    for(int t=0;t<threads;t++)
+    {
+      final int reader = t;
+      readers.add(pool.submit(new Callable<Void>()
+      {
+        @Override
+        public Void call() throws Exception
+        {
+          while(!done(writers))
+          {
+            check_untorn(file.read_data_local_coords(0,0,0,N,N,N));
+            reads[reader]++;
+          }
+          return null;
+        }
+      }));
+    }
+    for(Future<Void> f : writers)
+    {
+      f.get(5, TimeUnit.MINUTES);
+    }
+    long total = 0;
+    for(int t=0;t<threads;t++)
+    {
+      readers.get(t).get(1, TimeUnit.MINUTES);
+      total += reads[t];
+    }
+    pool.shutdown();
+    
+    // every slab holds its writer's last update
+    float[][][] result = file.read_data();
+    for(int x1=0;x1<N;x1++)
+    {
+      float expected = value(x1/SLAB, WRITES);
+      for(int x2=0;x2<N;x2++)
+      {
+        for(int x3=0;x3<N;x3++)
+        {
+          check(result[x1][x2][x3]==expected, "lost update at "+x1+","+x2+","+x3+": "+result[x1][x2][x3]+" instead of "+expected);
+        }
+      }
+    }
+    file.clean();
+    file.close();
+    System.out.println("ok, "+slabs+" writers, "+threads+" readers, "+total+" whole volume reads");
+  }
+  
+  private static float value(int slab,int write)
+  {
+    return slab*1000+write;
+  }
+  
+  private static void fill(float[][][] data,float value)
+  {
+    for(float[][] plane : data)
+    {
+      for(float[] row : plane)
+      {
+        Arrays.fill(row, value);
+      }
+    }
+  }
+  
+  private static boolean done(List<Future<Void>> futures)
+  {
+    for(Future<Void> f : futures)
+    {
+      if(!f.isDone())
+      {
+        return false;
+      }
+    }
+    return true;
+  }
+  
+  // within a tile, a slab's rows all come from the same write
+  private static void check_untorn(float[][][] data)
+  {
+    Map<Long,Float> seen = new HashMap<Long,Float>();
+    for(int x1=0;x1<N;x1++)
+    {
+      for(int x2=0;x2<N;x2++)
+      {
+        for(int x3=0;x3<N;x3++)
+        {
+          long piece = (((long)(x1/SLAB)*N+x1/P)*N+x2/P)*N+x3/P;
+          Float first = seen.putIfAbsent(piece, data[x1][x2][x3]);
+          check(first==null||first==data[x1][x2][x3], "torn tile at "+x1+","+x2+","+x3+": "+data[x1][x2][x3]+" next to "+first);
+        }
+      }
+    }
+  }
+  
+  private static void check(boolean condition,String message)
+  {
+    if(!condition)
+    {
+      throw new AssertionError(message);
+    }
+  }
+}